@@ -0,0 +1,158 @@
+"""End-to-end load and recovery test against the local client.
+
+Runs the service with snowpiperest.client=local, so no Snowflake account or
+network is needed:
+
+1. Crash: send requests until the local channel simulates a crash after
+   --crash-after rows.
+2. Recovery: restart the service, let it replay its WAL, and check that
+   every acknowledged row was committed exactly once.
+3. Load: send --requests more requests, report the throughput and latency,
+   and check again that every row was committed exactly once.
+
+Exits non-zero if a check fails.
+"""
+import argparse
+import concurrent.futures
+import glob
+import http.client
+import json
+import logging
+import os
+import shutil
+import subprocess
+import time
+import urllib.error
+import urllib.request
+
+logging.basicConfig(level=logging.INFO, format='%(asctime)s %(message)s')
+
+
+def start_service(args, crash_after):
+    env = dict(os.environ,
+               SNOWFLAKE_URL='local', SNOWFLAKE_USER='local', SNOWFLAKE_ROLE='local', SNOWFLAKE_PRIVATE_KEY='local',
+               SNOWPIPE_NAME='LOADTEST', SNOWPIPE_DATABASE='LOADTEST', SNOWPIPE_SCHEMA='PUBLIC', SNOWPIPE_TABLE='ROWS',
+               SERVER_PORT=str(args.port))
+    cmd = ['java', '-jar', args.jar,
+           f'--server.port={args.port}',
+           '--snowpiperest.client=local',
+           f'--snowpiperest.local.dir={args.work_dir}/local',
+           f'--snowpiperest.local.commit_delay_millis={args.commit_delay_millis}',
+           f'--snowpiperest.local.crash_after_rows={crash_after}',
+           f'--snowpiperest.wal.dir={args.work_dir}/wal',
+           f'--snowpiperest.channels={args.channels}']
+    log = open(os.path.join(args.work_dir, 'service.log'), 'a')
+    proc = subprocess.Popen(cmd, env=env, stdout=log, stderr=subprocess.STDOUT)
+    deadline = time.time() + 120
+    while time.time() < deadline:
+        if proc.poll() is not None:
+            raise RuntimeError(f'Service exited with {proc.returncode}; see {log.name}')
+        try:
+            urllib.request.urlopen(f'http://localhost:{args.port}/snowpipe/hello', timeout=1)
+            return proc
+        except (urllib.error.URLError, ConnectionError):
+            time.sleep(0.5)
+    proc.kill()
+    raise RuntimeError('Service did not start')
+
+
+def make_body(first_id, rows_per_request):
+    return json.dumps([{'ID': i, 'PAYLOAD': 'x' * 100} for i in range(first_id, first_id + rows_per_request)]).encode()
+
+
+def send(args, first_id):
+    request = urllib.request.Request(f'http://localhost:{args.port}/snowpipe/insert', method='PUT',
+                                     data=make_body(first_id, args.rows_per_request),
+                                     headers={'Content-Type': 'application/json'})
+    start = time.time()
+    try:
+        with urllib.request.urlopen(request, timeout=60) as resp:
+            resp.read()
+            return first_id, time.time() - start
+    except (urllib.error.URLError, http.client.HTTPException, ConnectionError, OSError):
+        # Including a response cut short by the crash (IncompleteRead)
+        return first_id, None
+
+
+def run_load(args, first_ids):
+    """Returns the ids of the acknowledged rows and the request latencies"""
+    acked = set()
+    latencies = []
+    with concurrent.futures.ThreadPoolExecutor(max_workers=args.concurrency) as pool:
+        for first_id, latency in pool.map(lambda i: send(args, i), first_ids):
+            if latency is not None:
+                acked.update(range(first_id, first_id + args.rows_per_request))
+                latencies.append(latency)
+    return acked, latencies
+
+
+def committed_ids(work_dir):
+    ids = []
+    for fname in glob.glob(os.path.join(work_dir, 'local', '*.ndjson')):
+        with open(fname) as f:
+            ids.extend(json.loads(line)['ID'] for line in f if line.strip())
+    return ids
+
+
+def check_committed(args, acked):
+    """Wait for every acknowledged row to be committed, and check for duplicates"""
+    deadline = time.time() + args.timeout
+    while True:
+        ids = committed_ids(args.work_dir)
+        missing = acked - set(ids)
+        if not missing or time.time() > deadline:
+            break
+        time.sleep(0.5)
+    duplicates = len(ids) - len(set(ids))
+    logging.info(f'{len(set(ids))} rows committed, {len(missing)} acknowledged rows missing, {duplicates} duplicates')
+    return not missing and 0 == duplicates
+
+
+def main(args):
+    shutil.rmtree(args.work_dir, ignore_errors=True)
+    os.makedirs(args.work_dir)
+    ok = True
+
+    logging.info(f'Crash: sending requests until the service crashes after {args.crash_after} rows')
+    proc = start_service(args, args.crash_after)
+    num_crash_requests = 2 * args.crash_after // args.rows_per_request + 1
+    acked, _ = run_load(args, range(0, num_crash_requests * args.rows_per_request, args.rows_per_request))
+    proc.wait(timeout=60)
+    logging.info(f'Service exited with {proc.returncode} after acknowledging {len(acked)} rows')
+
+    logging.info('Recovery: restarting and replaying the WAL')
+    proc = start_service(args, 0)
+    try:
+        ok = check_committed(args, acked) and ok
+
+        logging.info(f'Load: {args.requests} requests of {args.rows_per_request} rows, {args.concurrency} at a time')
+        first = num_crash_requests * args.rows_per_request
+        start = time.time()
+        load_acked, latencies = run_load(args, range(first, first + args.requests * args.rows_per_request, args.rows_per_request))
+        elapsed = time.time() - start
+        latencies.sort()
+        logging.info(f'{len(load_acked) / elapsed:.0f} rows/s, {len(latencies) / elapsed:.0f} requests/s; '
+                     f'latency p50 {1000 * latencies[len(latencies) // 2]:.1f} ms, p99 {1000 * latencies[int(len(latencies) * 0.99)]:.1f} ms')
+        ok = (len(load_acked) == args.requests * args.rows_per_request) and ok
+        ok = check_committed(args, acked | load_acked) and ok
+    finally:
+        proc.terminate()
+        proc.wait()
+
+    logging.info('PASSED' if ok else 'FAILED')
+    return 0 if ok else 1
+
+
+if __name__ == '__main__':
+    cli_parser = argparse.ArgumentParser()
+    cli_parser.add_argument('--jar', default='target/SnowpipeRest-0.0.1-SNAPSHOT.jar', help='The service jar.')
+    cli_parser.add_argument('--work-dir', default='target/local-load-test', help='Directory for the WAL, the committed rows and the log.')
+    cli_parser.add_argument('--port', type=int, default=8089, help='Port to run the service on.')
+    cli_parser.add_argument('--channels', type=int, default=2, help='Channels to open on the table.')
+    cli_parser.add_argument('--requests', type=int, default=20000, help='Requests to send in the load phase.')
+    cli_parser.add_argument('--rows-per-request', type=int, default=5, help='Rows in each request.')
+    cli_parser.add_argument('--concurrency', type=int, default=32, help='Requests in flight at a time.')
+    cli_parser.add_argument('--crash-after', type=int, default=5000, help='Rows after which the service crashes in the crash phase.')
+    cli_parser.add_argument('--commit-delay-millis', type=int, default=1000, help='How long the local channel takes to commit rows.')
+    cli_parser.add_argument('--timeout', type=int, default=60, help='Seconds to wait for rows to be committed.')
+    exit(main(cli_parser.parse_args()))
@@ -0,0 +1,75 @@
+package com.example.SnowpipeRest;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import net.snowflake.ingest.streaming.InsertValidationResponse;
+import net.snowflake.ingest.streaming.SnowflakeStreamingIngestChannel;
+
+// A channel that accepts every row and commits it at once, so the
+// benchmarks measure this service and not Snowflake
+public class SnowpipeRestBenchChannel implements SnowflakeStreamingIngestChannel {
+    volatile String committed = null;
+
+    @Override
+    public String getFullyQualifiedName() {
+        return "BENCH.PUBLIC.BENCH.BENCH_CHANNEL";
+    }
+
+    @Override
+    public String getName() {
+        return "BENCH_CHANNEL";
+    }
+
+    @Override
+    public String getDBName() {
+        return "BENCH";
+    }
+
+    @Override
+    public String getSchemaName() {
+        return "PUBLIC";
+    }
+
+    @Override
+    public String getTableName() {
+        return "BENCH";
+    }
+
+    @Override
+    public String getFullyQualifiedTableName() {
+        return "BENCH.PUBLIC.BENCH";
+    }
+
+    @Override
+    public boolean isValid() {
+        return true;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return false;
+    }
+
+    @Override
+    public CompletableFuture<Void> close() {
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public InsertValidationResponse insertRow(Map<String,Object> row, String offsetToken) {
+        committed = offsetToken;
+        return new InsertValidationResponse();
+    }
+
+    @Override
+    public InsertValidationResponse insertRows(Iterable<Map<String,Object>> rows, String offsetToken) {
+        committed = offsetToken;
+        return new InsertValidationResponse();
+    }
+
+    @Override
+    public String getLatestCommittedOffsetToken() {
+        return committed;
+    }
+}
@@ -0,0 +1,82 @@
+package com.example.SnowpipeRest;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+// Rows shaped like the output of datagen/datagen.py: VARCHAR, VARIANT,
+// BOOLEAN, FLOAT, ARRAY and TIMESTAMP_NTZ columns in turn, with the same
+// value sizes. Seeded, so every run benchmarks the same data.
+public class SnowpipeRestBenchData {
+    private static final String CHARS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789";
+
+    private Random random = new Random(42);
+
+    private String gen_string() {
+        int len = 50 + random.nextInt(51);
+        StringBuilder sb = new StringBuilder(len);
+        for (int i = 0; i < len; i++)
+            sb.append(CHARS.charAt(random.nextInt(CHARS.length())));
+        return sb.toString();
+    }
+
+    private Object gen_value(int column) {
+        switch (column % 6) {
+            case 0:
+                return gen_string();
+            case 1:
+                return Map.of("key", gen_string());
+            case 2:
+                return random.nextBoolean();
+            case 3:
+                return -1000 + 2000 * random.nextDouble();
+            case 4: {
+                List<String> array = new ArrayList<String>();
+                for (int i = 5 + random.nextInt(11); i > 0; i--)
+                    array.add(gen_string());
+                return array;
+            }
+            default:
+                return String.format("2024-%02d-%02dT%02d:%02d:AM", 1 + random.nextInt(6), 1 + random.nextInt(28), 1 + random.nextInt(12), random.nextInt(60));
+        }
+    }
+
+    List<Map<String,Object>> rows(int num_rows, int num_columns) {
+        List<Map<String,Object>> rows = new ArrayList<Map<String,Object>>();
+        for (int r = 0; r < num_rows; r++) {
+            Map<String,Object> row = new LinkedHashMap<String,Object>();
+            for (int c = 0; c < num_columns; c++)
+                row.put("COL_" + c, gen_value(c));
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    byte[] body(int num_rows, int num_columns) throws JsonProcessingException {
+        return new ObjectMapper().writeValueAsBytes(rows(num_rows, num_columns));
+    }
+
+    static SnowpipeRestMetrics metrics() {
+        return new SnowpipeRestMetrics(new SimpleMeterRegistry());
+    }
+
+    static void delete_dir(File dir) throws IOException {
+        if (!dir.exists())
+            return;
+        try (Stream<java.nio.file.Path> paths = Files.walk(dir.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).map(java.nio.file.Path::toFile).forEach(File::delete);
+        }
+    }
+}
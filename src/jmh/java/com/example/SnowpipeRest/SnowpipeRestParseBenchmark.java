@@ -0,0 +1,64 @@
+package com.example.SnowpipeRest;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+// Parsing a request body, as saveToSnowflake does (into rows keyed by the
+// table's column dictionary), and parsing plus inserting it into a channel
+// without a WAL, for each Content-Type a body can be sent as
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SnowpipeRestParseBenchmark {
+    @Param({"10", "50", "200"})
+    int num_columns;
+
+    @Param({"1", "500"})
+    int num_rows;
+
+    @Param({"application/json", "application/x-jackson-smile", "application/cbor"})
+    String content_type;
+
+    private ObjectMapper objectMapper = new ObjectMapper();
+    private byte[] body;
+    private JsonFactory binary_factory;
+    private SnowpipeRestColumns columns = new SnowpipeRestColumns();
+    private SnowpipeRestChannel channel;
+
+    @Setup
+    public void setup() throws Exception {
+        body = new SnowpipeRestBenchData().body(num_rows, num_columns);
+        binary_factory = SnowpipeRestFormat.binary_factory(content_type);
+        if (null != binary_factory)
+            body = new ObjectMapper(binary_factory).writeValueAsBytes(objectMapper.readValue(body, Object.class));
+        channel = new SnowpipeRestChannel(new SnowpipeRestBenchChannel(), 0, null, null, 100, SnowpipeRestBenchData.metrics());
+    }
+
+    @Benchmark
+    public SnowpipeRestBatch parse() {
+        return SnowpipeRestBatch.parse(objectMapper, body, columns, binary_factory);
+    }
+
+    @Benchmark
+    public SnowpipeRestChannel.InsertResult parseAndInsert() {
+        SnowpipeRestBatch batch = SnowpipeRestBatch.parse(objectMapper, body, columns, binary_factory);
+        return channel.insertRows(batch.getRows(), 0);
+    }
+}
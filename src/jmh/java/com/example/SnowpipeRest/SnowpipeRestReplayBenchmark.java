@@ -0,0 +1,89 @@
+package com.example.SnowpipeRest;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Replaying a WAL at startup, in rows per second, for each
+// snowpiperest.wal.compression
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SnowpipeRestReplayBenchmark {
+    static final int NUM_ROWS = 20000;
+
+    // A committed offset just before the first row of the first WAL file,
+    // so that the whole WAL is replayed
+    static final String BEFORE_FIRST_ROW = "file_0000000000:-1";
+
+    @Param({"none", "deflate", "zstd"})
+    String compression;
+
+    private File wal_dir;
+    private SnowpipeRestBenchChannel bench_channel;
+    private SnowpipeRestChannel channel;
+    private SnowpipeRestMetrics metrics;
+    private SnowpipeRestWALConfig config;
+    private int num_segments;
+
+    @Setup
+    public void setup() throws Exception {
+        wal_dir = Files.createTempDirectory("snowpiperest-replay-bench").toFile();
+        bench_channel = new SnowpipeRestBenchChannel();
+        metrics = SnowpipeRestBenchData.metrics();
+        channel = new SnowpipeRestChannel(bench_channel, 0, null, null, 100, metrics);
+        // Poll for commits rarely, so that nothing is purged while benchmarking
+        config = new SnowpipeRestWALConfig(0, 67108864, 1048576, 1000, 3600000, 4194304, 0, SnowpipeRestWALCodec.codec_id(compression));
+
+        SnowpipeRestWAL wal = new SnowpipeRestWAL(channel, wal_dir.getPath(), config, metrics);
+        List<Map<String,Object>> rows = new SnowpipeRestBenchData().rows(100, 50);
+        for (int i = 0; i < NUM_ROWS; i += rows.size())
+            wal.write_to_log(rows);
+        num_segments = wal.get_wal_segment_count();
+        wal.close();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        SnowpipeRestBenchData.delete_dir(wal_dir);
+    }
+
+    @Setup(Level.Invocation)
+    public void reset() {
+        bench_channel.committed = BEFORE_FIRST_ROW;
+    }
+
+    // Opening a WAL starts a fresh file after the replay; drop it again
+    @TearDown(Level.Invocation)
+    public void dropNewSegments() {
+        for (File f : wal_dir.listFiles())
+            if (Integer.parseInt(f.getName().substring("file_".length())) >= num_segments)
+                f.delete();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_ROWS)
+    public void replay() {
+        new SnowpipeRestWAL(channel, wal_dir.getPath(), config, metrics).close();
+    }
+}
@@ -0,0 +1,53 @@
+package com.example.SnowpipeRest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+// Writing the response for a request in which many rows failed, in full
+// and with the error rows capped (X-Snowpipe-Max-Errors)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SnowpipeRestResponseBenchmark {
+    @Param({"10", "1000", "10000"})
+    int num_errors;
+
+    @Param({"-1", "100"})
+    int max_errors;
+
+    private SnowpipeInsertResponse response;
+
+    @Setup
+    public void setup() throws Exception {
+        ObjectMapper objectMapper = new ObjectMapper();
+        SnowpipeRestBenchData data = new SnowpipeRestBenchData();
+        SnowpipeRestBatch batch = SnowpipeRestBatch.parse(objectMapper, data.body(num_errors, 10), new SnowpipeRestColumns(), null);
+        response = new SnowpipeInsertResponse(num_errors, 0, num_errors).limitErrors(max_errors);
+        for (int i = 0; i < num_errors; i++)
+            response.addError(new SnowpipeInsertError(i, batch,
+                "The given row cannot be converted to the internal format: Extra columns: [COL_9]"));
+    }
+
+    @Benchmark
+    public void write() throws IOException {
+        response.write(OutputStream.nullOutputStream());
+    }
+}
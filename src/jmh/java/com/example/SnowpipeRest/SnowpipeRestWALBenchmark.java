@@ -0,0 +1,71 @@
+package com.example.SnowpipeRest;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Logging a request's rows to the WAL, for each snowpiperest.wal.flush
+// setting: 0 (no sync), 1 (sync every write), 2 (group commit), and each
+// snowpiperest.wal.compression
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SnowpipeRestWALBenchmark {
+    @Param({"0", "1", "2"})
+    int wal_flush;
+
+    @Param({"1", "10"})
+    int num_rows;
+
+    @Param({"none", "deflate", "zstd"})
+    String compression;
+
+    private File wal_dir;
+    private SnowpipeRestBenchChannel bench_channel;
+    private SnowpipeRestWAL wal;
+    private List<Map<String,Object>> rows;
+
+    @Setup
+    public void setup() throws Exception {
+        wal_dir = Files.createTempDirectory("snowpiperest-wal-bench").toFile();
+        bench_channel = new SnowpipeRestBenchChannel();
+        SnowpipeRestMetrics metrics = SnowpipeRestBenchData.metrics();
+        SnowpipeRestChannel channel = new SnowpipeRestChannel(bench_channel, 0, null, null, 100, metrics);
+        SnowpipeRestWALConfig config = new SnowpipeRestWALConfig(wal_flush, 67108864, 1048576, 1000, 100, 4194304, 0, SnowpipeRestWALCodec.codec_id(compression));
+        wal = new SnowpipeRestWAL(channel, wal_dir.getPath(), config, metrics);
+        rows = new SnowpipeRestBenchData().rows(num_rows, 50);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        wal.close();
+        SnowpipeRestBenchData.delete_dir(wal_dir);
+    }
+
+    @Benchmark
+    public String write_to_log() {
+        String token = wal.write_to_log(rows);
+        wal.wait_for_commit(wal.get_appended_rows());
+        // Commit at once, so the tracker purges the WAL files as it goes
+        bench_channel.committed = token;
+        return token;
+    }
+}
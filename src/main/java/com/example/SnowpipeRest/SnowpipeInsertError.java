@@ -1,9 +1,23 @@
 package com.example.SnowpipeRest;
 
+import java.io.IOException;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+// One rejected row. The input is only turned into text if the error is
+// written out: it is sliced from the request body, or, for a streamed
+// body, re-serialized from the row.
 public class SnowpipeInsertError {
-    public int row_index;
-    public String input;
-    public String error;
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private int row_index;
+    private String input;
+    private String error;
+    private SnowpipeRestBatch batch;
+    private Map<String,Object> row;
 
     public SnowpipeInsertError(int row_index, String input, String error) {
         this.row_index = row_index;
@@ -11,11 +25,30 @@ public class SnowpipeInsertError {
         this.error = error;
     }
 
+    // Row row_index of the batch
+    SnowpipeInsertError(int row_index, SnowpipeRestBatch batch, String error) {
+        this.row_index = row_index;
+        this.batch = batch;
+        this.error = error;
+    }
+
+    SnowpipeInsertError(int row_index, Map<String,Object> row, String error) {
+        this.row_index = row_index;
+        this.row = row;
+        this.error = error;
+    }
+
     public int getRow_index() {
         return row_index;
     }
 
     public String getInput() {
+        if (null == input) {
+            if (null != batch)
+                input = batch.getInput(row_index);
+            else if (null != row)
+                input = row_input(row);
+        }
         return input;
     }
 
@@ -23,7 +56,37 @@ public class SnowpipeInsertError {
         return error;
     }
 
+    // The same error with its input as text, not tied to the request, cut
+    // to max_input_chars
+    SnowpipeInsertError detach(int max_input_chars) {
+        String text = getInput();
+        if ((null != text) && (text.length() > max_input_chars))
+            text = text.substring(0, max_input_chars);
+        return new SnowpipeInsertError(row_index, text, error);
+    }
+
+    void write(JsonGenerator gen) throws IOException {
+        gen.writeStartObject();
+        gen.writeStringField("row_index", Integer.toString(row_index));
+        gen.writeFieldName("input");
+        if ((null == input) && (null != batch))
+            batch.writeInput(gen, row_index);
+        else
+            gen.writeString(getInput());
+        gen.writeStringField("error", error);
+        gen.writeEndObject();
+    }
+
+    static String row_input(Map<String,Object> row) {
+        try {
+            return objectMapper.writeValueAsString(row);
+        }
+        catch (JsonProcessingException jpe) {
+            return row.toString();
+        }
+    }
+
     public String toString() {
-        return String.format("{\"row_index\": \"%s\", \"input\": \"%s\", \"error\": \"%s\"}", row_index, input, error);
+        return SnowpipeInsertResponse.render(this::write);
     }
 }
@@ -1,13 +1,28 @@
 package com.example.SnowpipeRest;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+
 public class SnowpipeInsertResponse {
+    private static final JsonFactory jsonFactory = new JsonFactory().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
     int num_attempted;
     int num_succeeded;
     int num_errors;
     List<SnowpipeInsertError> errors;
+    // The most error rows to write out; -1 for all of them
+    int max_errors = -1;
+    // Error rows dropped from errors by detach()
+    int omitted_errors = 0;
 
     public SnowpipeInsertResponse(int num_attempted, int num_succeeded, int num_errors) {
         this(num_attempted, num_succeeded, num_errors, new ArrayList<SnowpipeInsertError>());
@@ -45,19 +60,82 @@ public class SnowpipeInsertResponse {
         return this;
     }
 
-    public String toString() {
-        StringBuffer resp_body = new StringBuffer("{\n");
-        resp_body.append(String.format(
-                "  \"inserts_attempted\": %d,\n  \"inserts_succeeded\": %d,\n  \"insert_errors\": %d,\n",
-                num_attempted, num_succeeded, num_errors));
-        resp_body.append("  \"error_rows\":\n    [");
-        String delim = " ";
-        for (SnowpipeInsertError e: errors) {
-            resp_body.append(String.format("\n    %s %s", delim, e.toString()));
-            delim = ",";
+    // Write out at most max_errors error rows (0 for just the counts); the
+    // number left out is given as error_rows_omitted
+    public SnowpipeInsertResponse limitErrors(int max_errors) {
+        this.max_errors = max_errors;
+        return this;
+    }
+
+    // A copy that holds on to no request body, to keep: the error rows'
+    // input is sliced out now. Keeps at most max_error_rows error rows, each
+    // input cut to max_input_chars, so that its size is bounded.
+    SnowpipeInsertResponse detach(int max_error_rows, int max_input_chars) {
+        int num_kept = Math.min(errors.size(), max_error_rows);
+        List<SnowpipeInsertError> detached = new ArrayList<SnowpipeInsertError>(num_kept);
+        for (int i = 0; i < num_kept; i++)
+            detached.add(errors.get(i).detach(max_input_chars));
+        SnowpipeInsertResponse sp_resp = new SnowpipeInsertResponse(num_attempted, num_succeeded, num_errors, detached);
+        sp_resp.omitted_errors = omitted_errors + errors.size() - num_kept;
+        return sp_resp;
+    }
+
+    // A copy to answer another request with, sharing the (detached) error rows
+    SnowpipeInsertResponse copy() {
+        SnowpipeInsertResponse sp_resp = new SnowpipeInsertResponse(num_attempted, num_succeeded, num_errors, errors);
+        sp_resp.omitted_errors = omitted_errors;
+        return sp_resp;
+    }
+
+    // The response as written (in full) by write()
+    static SnowpipeInsertResponse read(JsonNode node) {
+        SnowpipeInsertResponse sp_resp = new SnowpipeInsertResponse(node.path("inserts_attempted").asInt(),
+            node.path("inserts_succeeded").asInt(), node.path("insert_errors").asInt());
+        for (JsonNode e : node.path("error_rows"))
+            sp_resp.addError(e.path("row_index").asInt(), e.path("input").asText(), e.path("error").asText());
+        sp_resp.omitted_errors = node.path("error_rows_omitted").asInt();
+        return sp_resp;
+    }
+
+    // Serialize straight to out, as JSON
+    public void write(OutputStream out) throws IOException {
+        try (JsonGenerator gen = jsonFactory.createGenerator(out)) {
+            write(gen);
         }
-        resp_body.append("\n    ]");
-        resp_body.append("\n}");
-        return resp_body.toString();
+    }
+
+    void write(JsonGenerator gen) throws IOException {
+        int num_written = ((max_errors < 0) || (max_errors > errors.size())) ? errors.size() : max_errors;
+        gen.writeStartObject();
+        gen.writeNumberField("inserts_attempted", num_attempted);
+        gen.writeNumberField("inserts_succeeded", num_succeeded);
+        gen.writeNumberField("insert_errors", num_errors);
+        gen.writeArrayFieldStart("error_rows");
+        for (int i = 0; i < num_written; i++)
+            errors.get(i).write(gen);
+        gen.writeEndArray();
+        int num_omitted = errors.size() - num_written + omitted_errors;
+        if (num_omitted > 0)
+            gen.writeNumberField("error_rows_omitted", num_omitted);
+        gen.writeEndObject();
+    }
+
+    interface Writer {
+        void write(JsonGenerator gen) throws IOException;
+    }
+
+    static String render(Writer writer) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JsonGenerator gen = jsonFactory.createGenerator(out)) {
+            writer.write(gen);
+        }
+        catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    public String toString() {
+        return render(this::write);
     }
 }
@@ -0,0 +1,153 @@
+package com.example.SnowpipeRest;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Admission control: turns requests away with a 429 instead of taking on
+// more rows than the service can hold while Snowflake catches up.
+//
+// In-flight rows and bytes are counted on the request path. The backlog of
+// each channel (rows issued but not covered by the committed offset token,
+// and WAL files not yet purged) is polled in the background, together with
+// the rate at which Snowflake commits rows, which sets the Retry-After.
+// A watermark of 0 is not checked.
+public class SnowpipeRestAdmission {
+    Logger logger = LoggerFactory.getLogger(SnowpipeRestAdmission.class);
+
+    private long max_inflight_rows;
+    private long max_inflight_bytes;
+    private long max_uncommitted_rows;
+    private int max_wal_segments;
+    private long max_retry_after_seconds;
+    private Supplier<List<SnowpipeRestChannel>> channels;
+
+    // Guarded by this
+    private long inflight_rows = 0;
+    private long inflight_bytes = 0;
+
+    // Set by the poller: why the backlog is too big (null if it is not), and
+    // how long until it should have drained
+    private volatile String backlog_reason = null;
+    private volatile long backlog_retry_after = 1;
+
+    // Per channel: the committed rows and the time at the last poll, and
+    // the commit rate (rows per second), smoothed as Snowflake commits in bursts
+    private static class ChannelPoll {
+        long committed;
+        long nanos;
+        double rate;
+
+        ChannelPoll(long committed, long nanos, double rate) {
+            this.committed = committed;
+            this.nanos = nanos;
+            this.rate = rate;
+        }
+    }
+
+    private static final double RATE_SMOOTHING = 0.3;
+
+    private Map<SnowpipeRestChannel, ChannelPoll> last_poll = new IdentityHashMap<SnowpipeRestChannel, ChannelPoll>();
+
+    public SnowpipeRestAdmission(long max_inflight_rows, long max_inflight_bytes, long max_uncommitted_rows, int max_wal_segments,
+                                 long poll_millis, long max_retry_after_seconds, Supplier<List<SnowpipeRestChannel>> channels) {
+        this.max_inflight_rows = max_inflight_rows;
+        this.max_inflight_bytes = max_inflight_bytes;
+        this.max_uncommitted_rows = max_uncommitted_rows;
+        this.max_wal_segments = max_wal_segments;
+        this.max_retry_after_seconds = max_retry_after_seconds;
+        this.channels = channels;
+        if (polls_backlog(max_uncommitted_rows, max_wal_segments)) {
+            ScheduledExecutorService poller = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "admission-poller");
+                t.setDaemon(true);
+                return t;
+            });
+            poller.scheduleWithFixedDelay(this::poll_backlog, poll_millis, poll_millis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Whether the backlog of each channel is polled, and so whether the
+    // channels need to track their uncommitted rows
+    static boolean polls_backlog(long max_uncommitted_rows, int max_wal_segments) {
+        return (max_uncommitted_rows > 0) || (max_wal_segments > 0);
+    }
+
+    // Rejects the request if the backlog is too big
+    void check() {
+        String reason = backlog_reason;
+        if (null != reason)
+            throw new SnowpipeRestOverloadedException(reason, backlog_retry_after);
+    }
+
+    // Rejects the request if the backlog is too big, or if taking it on
+    // would put too much in flight; otherwise counts it as in flight until
+    // it is released
+    void admit(long rows, long bytes) {
+        check();
+        synchronized (this) {
+            // Always let one request through, however big
+            boolean idle = (0 == inflight_rows) && (0 == inflight_bytes);
+            if (!idle && (max_inflight_rows > 0) && (inflight_rows + rows > max_inflight_rows))
+                throw new SnowpipeRestOverloadedException(String.format("Too many rows in flight (%d)", inflight_rows), 1);
+            if (!idle && (max_inflight_bytes > 0) && (inflight_bytes + bytes > max_inflight_bytes))
+                throw new SnowpipeRestOverloadedException(String.format("Too many bytes in flight (%d)", inflight_bytes), 1);
+            inflight_rows += rows;
+            inflight_bytes += bytes;
+        }
+    }
+
+    synchronized void release(long rows, long bytes) {
+        inflight_rows -= rows;
+        inflight_bytes -= bytes;
+    }
+
+    private void poll_backlog() {
+        String reason = null;
+        long retry_after = 1;
+        long now = System.nanoTime();
+        Map<SnowpipeRestChannel, ChannelPoll> this_poll = new IdentityHashMap<SnowpipeRestChannel, ChannelPoll>();
+        for (SnowpipeRestChannel channel : channels.get()) {
+            long uncommitted;
+            try {
+                uncommitted = channel.refreshUncommittedRows();
+            }
+            catch (Exception e) {
+                logger.warn(String.format("poll_backlog: error polling %s", channel.getFullyQualifiedName()), e);
+                continue;
+            }
+            long committed = channel.getCommittedRows();
+            ChannelPoll last = last_poll.get(channel);
+            double rate = 0;
+            if ((null != last) && (now > last.nanos))
+                rate = (1 - RATE_SMOOTHING) * last.rate + RATE_SMOOTHING * (committed - last.committed) * 1e9 / (now - last.nanos);
+            this_poll.put(channel, new ChannelPoll(committed, now, rate));
+
+            // Rows to drain to get back under the watermarks
+            long excess = 0;
+            if ((max_uncommitted_rows > 0) && (uncommitted > max_uncommitted_rows)) {
+                excess = uncommitted - max_uncommitted_rows;
+                reason = String.format("Channel %s has %d rows not yet committed", channel.getName(), uncommitted);
+            }
+            int segments = channel.getWalSegmentCount();
+            if ((max_wal_segments > 0) && (segments > max_wal_segments)) {
+                excess = Math.max(excess, uncommitted * (segments - max_wal_segments) / segments);
+                reason = String.format("Channel %s has %d WAL files not yet committed", channel.getName(), segments);
+            }
+            if (excess > 0)
+                retry_after = Math.max(retry_after, (rate > 0) ? (long)Math.ceil(excess / rate) : max_retry_after_seconds);
+        }
+        last_poll = this_poll;
+        backlog_retry_after = Math.min(retry_after, max_retry_after_seconds);
+        if ((null == backlog_reason) != (null == reason))
+            logger.info((null == reason) ? "poll_backlog: backlog drained, accepting requests" : String.format("poll_backlog: rejecting requests: %s", reason));
+        backlog_reason = reason;
+    }
+}
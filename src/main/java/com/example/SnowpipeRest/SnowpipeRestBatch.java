@@ -0,0 +1,94 @@
+package com.example.SnowpipeRest;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+// The rows of one request body, parsed in a single streaming pass.
+// Only the byte offsets of each row in the original body are kept, so the
+// text of a row is sliced out of the body if (and only if) it is needed
+// for an error report. A binary (Smile or CBOR) body has no text to slice,
+// so its rows are written out as JSON instead.
+public class SnowpipeRestBatch {
+    private byte[] body;
+    private List<Map<String,Object>> rows;
+    // null for a binary body
+    private int[] offsets;
+
+    SnowpipeRestBatch(byte[] body, List<Map<String,Object>> rows, int[] offsets) {
+        this.body = body;
+        this.rows = rows;
+        this.offsets = offsets;
+    }
+
+    public List<Map<String,Object>> getRows() {
+        return rows;
+    }
+
+    public int size() {
+        return rows.size();
+    }
+
+    public int getBytes() {
+        return body.length;
+    }
+
+    public String getInput(int idx) {
+        if (null == offsets)
+            return SnowpipeInsertError.row_input(rows.get(idx));
+        int start = offsets[2 * idx];
+        int end = offsets[2 * idx + 1];
+        return new String(body, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    // The text of a row as a JSON string value, without making a String of it
+    void writeInput(JsonGenerator gen, int idx) throws IOException {
+        if (null == offsets) {
+            gen.writeString(getInput(idx));
+            return;
+        }
+        int start = offsets[2 * idx];
+        int end = offsets[2 * idx + 1];
+        gen.writeUTF8String(body, start, end - start);
+    }
+
+    // Rows are read as SnowpipeRestRows keyed by the table's columns.
+    // binary_factory parses a binary body (see SnowpipeRestFormat); null for JSON
+    public static SnowpipeRestBatch parse(ObjectMapper objectMapper, byte[] body, SnowpipeRestColumns columns, JsonFactory binary_factory) {
+        List<Map<String,Object>> rows = new ArrayList<Map<String,Object>>();
+        int[] offsets = new int[16];
+        JsonFactory factory = (null == binary_factory) ? objectMapper.getFactory() : binary_factory;
+        try (JsonParser parser = factory.createParser(body)) {
+            if (JsonToken.START_ARRAY != parser.nextToken())
+                throw new SnowpipeRestJsonParseException("Unable to parse body as list of JSON strings.");
+            JsonToken token;
+            while (JsonToken.START_OBJECT == (token = parser.nextToken())) {
+                int start = (int)parser.getTokenLocation().getByteOffset();
+                Map<String,Object> row = SnowpipeRestRow.read(parser, columns, objectMapper);
+                int end = (int)parser.getCurrentLocation().getByteOffset();
+
+                if (offsets.length < 2 * (rows.size() + 1))
+                    offsets = Arrays.copyOf(offsets, 2 * offsets.length);
+                offsets[2 * rows.size()] = start;
+                offsets[2 * rows.size() + 1] = end;
+                rows.add(row);
+            }
+            // Must be exactly one array of objects
+            if ((JsonToken.END_ARRAY != token) || (null != parser.nextToken()))
+                throw new SnowpipeRestJsonParseException("Unable to parse body as list of JSON strings.");
+        }
+        catch (IOException ioe) {
+            throw new SnowpipeRestJsonParseException("Unable to parse body as list of JSON strings.");
+        }
+        return new SnowpipeRestBatch(body, rows, (null == binary_factory) ? offsets : null);
+    }
+}
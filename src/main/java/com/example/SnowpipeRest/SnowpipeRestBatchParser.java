@@ -0,0 +1,150 @@
+package com.example.SnowpipeRest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.async.ByteArrayFeeder;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+
+// Parses a request body into a SnowpipeRestBatch a chunk at a time, as the
+// chunks arrive, with Jackson's non-blocking parser, so no thread waits on
+// the network while a body is read. The body must be the same JSON array
+// of objects as for SnowpipeRestBatch.parse, and is kept for the same
+// reason: to slice out the text of error rows.
+public class SnowpipeRestBatchParser {
+    private static final String PARSE_ERROR = "Unable to parse body as list of JSON strings.";
+
+    private ObjectMapper objectMapper;
+    private SnowpipeRestColumns columns;
+    private JsonParser parser;
+    private ByteArrayFeeder feeder;
+
+    private byte[] body;
+    private int length = 0;
+    private List<Map<String,Object>> rows = new ArrayList<Map<String,Object>>();
+    private int[] offsets = new int[16];
+
+    // Nesting depth of the parser: 1 inside the array, 2 or more inside a
+    // row, whose tokens are buffered until it ends
+    private int depth = 0;
+    private boolean ended = false;
+    private TokenBuffer row = null;
+    private int row_start;
+    private long parse_nanos = 0;
+
+    // expected_bytes sizes the body buffer, e.g. from the Content-Length;
+    // rows are keyed by the table's columns
+    public SnowpipeRestBatchParser(ObjectMapper objectMapper, int expected_bytes, SnowpipeRestColumns columns) {
+        this.objectMapper = objectMapper;
+        this.columns = columns;
+        this.body = new byte[Math.max(expected_bytes, 1024)];
+        try {
+            this.parser = objectMapper.getFactory().createNonBlockingByteArrayParser();
+        }
+        catch (IOException ioe) {
+            throw new SnowpipeRestJsonParseException(PARSE_ERROR);
+        }
+        this.feeder = (ByteArrayFeeder)parser.getNonBlockingInputFeeder();
+    }
+
+    // Parse the next chunk of the body, as far as it goes
+    void feed(ByteBuffer chunk) {
+        long start = System.nanoTime();
+        int n = chunk.remaining();
+        if (body.length - length < n)
+            body = Arrays.copyOf(body, Math.max(2 * body.length, length + n));
+        chunk.get(body, length, n);
+        try {
+            // The parser reads from the body buffer, which is only replaced
+            // (above) once the parser has consumed all of it
+            feeder.feedInput(body, length, length + n);
+            length += n;
+            parse_available();
+        }
+        catch (IOException ioe) {
+            throw new SnowpipeRestJsonParseException(PARSE_ERROR);
+        }
+        parse_nanos += System.nanoTime() - start;
+    }
+
+    // The rows of the whole body
+    SnowpipeRestBatch finish() {
+        long start = System.nanoTime();
+        try {
+            feeder.endOfInput();
+            parse_available();
+            parser.close();
+        }
+        catch (IOException ioe) {
+            throw new SnowpipeRestJsonParseException(PARSE_ERROR);
+        }
+        // Must be exactly one array of objects
+        if (!ended)
+            throw new SnowpipeRestJsonParseException(PARSE_ERROR);
+        byte[] b = (body.length == length) ? body : Arrays.copyOf(body, length);
+        parse_nanos += System.nanoTime() - start;
+        return new SnowpipeRestBatch(b, rows, offsets);
+    }
+
+    // Time spent parsing, without the time spent waiting for the body
+    long get_parse_nanos() {
+        return parse_nanos;
+    }
+
+    private void parse_available() throws IOException {
+        JsonToken token;
+        while ((null != (token = parser.nextToken())) && (JsonToken.NOT_AVAILABLE != token)) {
+            if (ended)
+                throw new SnowpipeRestJsonParseException(PARSE_ERROR);
+            if (0 == depth) {
+                if (JsonToken.START_ARRAY != token)
+                    throw new SnowpipeRestJsonParseException(PARSE_ERROR);
+                depth = 1;
+            }
+            else if (1 == depth) {
+                if (JsonToken.END_ARRAY == token) {
+                    ended = true;
+                    depth = 0;
+                    continue;
+                }
+                if (JsonToken.START_OBJECT != token)
+                    throw new SnowpipeRestJsonParseException(PARSE_ERROR);
+                // The non-blocking parser's token location for a '{' is
+                // after it; the parser has consumed just the '{'
+                row_start = (int)parser.getCurrentLocation().getByteOffset() - 1;
+                row = new TokenBuffer(parser);
+                row.copyCurrentEvent(parser);
+                depth = 2;
+            }
+            else {
+                row.copyCurrentEvent(parser);
+                if (token.isStructStart())
+                    depth++;
+                else if (token.isStructEnd() && (1 == --depth))
+                    add_row();
+            }
+        }
+    }
+
+    private void add_row() throws IOException {
+        int end = (int)parser.getCurrentLocation().getByteOffset();
+        Map<String,Object> r;
+        try (JsonParser p = row.asParser()) {
+            r = SnowpipeRestRow.read(p, columns, objectMapper);
+        }
+        row = null;
+
+        if (offsets.length < 2 * (rows.size() + 1))
+            offsets = Arrays.copyOf(offsets, 2 * offsets.length);
+        offsets[2 * rows.size()] = row_start;
+        offsets[2 * rows.size() + 1] = end;
+        rows.add(r);
+    }
+}
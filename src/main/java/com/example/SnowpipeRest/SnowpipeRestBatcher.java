@@ -0,0 +1,127 @@
+package com.example.SnowpipeRest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.snowflake.ingest.streaming.InsertValidationResponse;
+
+// Coalesces concurrent small requests on a channel into one insert.
+// The first request to arrive opens a batch; requests arriving within
+// linger_micros join it, up to max_rows rows or max_bytes bytes. The batch
+// then goes to the channel as one WAL append and one insertRows call, and
+// the insert errors are handed back to each request with its own row index.
+public class SnowpipeRestBatcher {
+    Logger logger = LoggerFactory.getLogger(SnowpipeRestBatcher.class);
+
+    private SnowpipeRestChannel channel;
+    private long linger_micros;
+    private int max_rows;
+    private long max_bytes;
+
+    private BlockingQueue<Request> queue = new LinkedBlockingQueue<Request>();
+    private Thread batcher;
+
+    private static class Request {
+        List<Map<String,Object>> rows;
+        long bytes;
+        CompletableFuture<SnowpipeRestChannel.InsertResult> result = new CompletableFuture<SnowpipeRestChannel.InsertResult>();
+
+        Request(List<Map<String,Object>> rows, long bytes) {
+            this.rows = rows;
+            this.bytes = bytes;
+        }
+    }
+
+    public SnowpipeRestBatcher(SnowpipeRestChannel channel, long linger_micros, int max_rows, long max_bytes) {
+        this.channel = channel;
+        this.linger_micros = linger_micros;
+        this.max_rows = max_rows;
+        this.max_bytes = max_bytes;
+        batcher = new Thread(this::batch_loop, "batcher-" + channel.getName());
+        batcher.setDaemon(true);
+        batcher.start();
+    }
+
+    CompletableFuture<SnowpipeRestChannel.InsertResult> submit(List<Map<String,Object>> rows, long bytes) {
+        Request request = new Request(rows, bytes);
+        queue.add(request);
+        return request.result;
+    }
+
+    void close() {
+        batcher.interrupt();
+    }
+
+    private void batch_loop() {
+        while (true) {
+            List<Request> batch = new ArrayList<Request>();
+            try {
+                Request first = queue.take();
+                batch.add(first);
+                int num_rows = first.rows.size();
+                long num_bytes = first.bytes;
+                long deadline = System.nanoTime() + linger_micros * 1000;
+                while ((num_rows < max_rows) && (num_bytes < max_bytes)) {
+                    Request next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (null == next)
+                        break;
+                    batch.add(next);
+                    num_rows += next.rows.size();
+                    num_bytes += next.bytes;
+                }
+            }
+            catch (InterruptedException ie) {
+                return;
+            }
+            insert(batch);
+        }
+    }
+
+    private void insert(List<Request> batch) {
+        List<Map<String,Object>> rows = batch.get(0).rows;
+        if (batch.size() > 1) {
+            rows = new ArrayList<Map<String,Object>>();
+            for (Request r : batch)
+                rows.addAll(r.rows);
+        }
+
+        SnowpipeRestChannel.InsertResult result;
+        try {
+            result = channel.insertRows(rows, 1);
+        }
+        catch (Exception e) {
+            batch.forEach(r -> r.result.completeExceptionally(e));
+            return;
+        }
+        if (1 == batch.size()) {
+            batch.get(0).result.complete(result);
+            return;
+        }
+
+        // Split the errors back out: errors are in row order, and so are the requests
+        List<InsertValidationResponse> responses = new ArrayList<InsertValidationResponse>();
+        for (int i = 0; i < batch.size(); i++)
+            responses.add(new InsertValidationResponse());
+        int req = 0;
+        long req_start = 0;
+        for (InsertValidationResponse.InsertError insertError : result.response.getInsertErrors()) {
+            long idx = insertError.getRowIndex();
+            while (idx >= req_start + batch.get(req).rows.size()) {
+                req_start += batch.get(req).rows.size();
+                req++;
+            }
+            insertError.setRowIndex(idx - req_start);
+            responses.get(req).addError(insertError);
+        }
+        for (int i = 0; i < batch.size(); i++)
+            batch.get(i).result.complete(new SnowpipeRestChannel.InsertResult(responses.get(i), result.token));
+    }
+}
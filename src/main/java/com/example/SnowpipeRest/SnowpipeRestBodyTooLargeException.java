@@ -0,0 +1,10 @@
+package com.example.SnowpipeRest;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+public class SnowpipeRestBodyTooLargeException extends ResponseStatusException {
+    public SnowpipeRestBodyTooLargeException(long max_body_bytes) {
+        super(HttpStatus.PAYLOAD_TOO_LARGE, String.format("Body is larger than %d bytes.", max_body_bytes));
+    }
+}
@@ -0,0 +1,317 @@
+package com.example.SnowpipeRest;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.snowflake.ingest.streaming.InsertValidationResponse;
+import net.snowflake.ingest.streaming.SnowflakeStreamingIngestChannel;
+
+// One Snowpipe Streaming channel in the pool, together with its own
+// offset-token sequence and its own WAL. All inserts into a channel are
+// serialized so that offset tokens are issued (and written to the WAL)
+// in the same order the rows are handed to Snowflake.
+public class SnowpipeRestChannel {
+    Logger logger = LoggerFactory.getLogger(SnowpipeRestChannel.class);
+
+    private SnowflakeStreamingIngestChannel channel;
+    private SnowpipeRestWAL wal = null;
+    private SnowpipeRestOffsetWatcher watcher;
+    private SnowpipeRestBatcher batcher = null;
+    private SnowpipeRestMetrics metrics;
+    private long insert_count = 0;
+
+    // While the WAL is being replayed in the background, new rows are
+    // logged to the WAL but held back here, so that Snowflake sees all
+    // replayed rows before any new ones. Guarded by this.
+    private boolean recovering = false;
+    private Throwable recovery_error = null;
+    private List<PendingInsert> pending = new ArrayList<PendingInsert>();
+    // How long a held request waits for its rows to be inserted (0 for no
+    // limit); they are inserted after the replay whether it waits or not
+    private long hold_timeout_millis;
+
+    // For admission control: the position of each offset token issued and
+    // not yet known to be committed, with the count of rows issued up to
+    // it. Only recorded once trackUncommittedRows() is called, as only the
+    // admission poller drains it. Guarded by this.
+    private boolean track_uncommitted = false;
+    private ArrayDeque<long[]> issued = new ArrayDeque<long[]>();
+    private long issued_rows = 0;
+    private long committed_rows = 0;
+
+    private static class PendingInsert {
+        List<Map<String,Object>> rows;
+        String token;
+        CompletableFuture<InsertValidationResponse> response = new CompletableFuture<InsertValidationResponse>();
+
+        PendingInsert(List<Map<String,Object>> rows, String token) {
+            this.rows = rows;
+            this.token = token;
+        }
+    }
+
+    // The response to an insert, and the offset token it was issued under
+    static class InsertResult {
+        InsertValidationResponse response;
+        String token;
+
+        InsertResult(InsertValidationResponse response, String token) {
+            this.response = response;
+            this.token = token;
+        }
+    }
+
+    public SnowpipeRestChannel(SnowflakeStreamingIngestChannel channel, int wal_enable, String wal_dir, SnowpipeRestWALConfig wal_config,
+                               long ack_poll_millis, SnowpipeRestMetrics metrics) {
+        this(channel, wal_enable, wal_dir, wal_config, ack_poll_millis, 0, metrics, null);
+    }
+
+    // Logs Idempotency-Keys to the WAL, and restores them into idempotency
+    // (if not null) on replay
+    public SnowpipeRestChannel(SnowflakeStreamingIngestChannel channel, int wal_enable, String wal_dir, SnowpipeRestWALConfig wal_config,
+                               long ack_poll_millis, long hold_timeout_millis, SnowpipeRestMetrics metrics,
+                               SnowpipeRestIdempotency idempotency) {
+        this.channel = channel;
+        this.metrics = metrics;
+        this.hold_timeout_millis = hold_timeout_millis;
+        this.watcher = new SnowpipeRestOffsetWatcher(channel, ack_poll_millis);
+        if (0 == wal_enable) {
+            // Without a WAL, tokens are an insert counter; carry on from
+            // the last committed one so tokens keep increasing across restarts
+            String last_offset = channel.getLatestCommittedOffsetToken();
+            if ((null != last_offset) && last_offset.matches("[0-9]+"))
+                insert_count = Long.parseLong(last_offset) + 1;
+        }
+        else {
+            wal = new SnowpipeRestWAL(this, wal_dir, wal_config, metrics, idempotency);
+            CompletableFuture<Void> recovery = wal.get_recovery();
+            synchronized (this) {
+                recovering = !recovery.isDone();
+            }
+            recovery.whenComplete((v, e) -> finish_recovery(e));
+        }
+    }
+
+    String getName() {
+        return channel.getName();
+    }
+
+    String getFullyQualifiedName() {
+        return channel.getFullyQualifiedName();
+    }
+
+    String getLatestCommittedOffsetToken() {
+        return channel.getLatestCommittedOffsetToken();
+    }
+
+    // Coalesce concurrent requests into one insert, lingering up to
+    // linger_micros for more rows
+    void enableBatching(long linger_micros, int max_rows, long max_bytes) {
+        batcher = new SnowpipeRestBatcher(this, linger_micros, max_rows, max_bytes);
+    }
+
+    // Record the offset tokens issued, for refreshUncommittedRows() to
+    // count the rows they cover until they are committed
+    synchronized void trackUncommittedRows() {
+        track_uncommitted = true;
+    }
+
+    // Insert the rows of one request, through the batcher if there is one.
+    // The batcher logs whatever it inserts to the WAL (if there is one), so
+    // rows that must not be logged go straight to the channel.
+    InsertResult submitRows(List<Map<String,Object>> rows, long bytes, int write_to_wal) {
+        if ((null == batcher) || ((0 == write_to_wal) && (null != wal)))
+            return insertRows(rows, write_to_wal);
+        try {
+            return batcher.submit(rows, bytes).join();
+        }
+        catch (CompletionException ce) {
+            if (ce.getCause() instanceof RuntimeException)
+                throw (RuntimeException)ce.getCause();
+            throw ce;
+        }
+    }
+
+    InsertResult insertRows(List<Map<String,Object>> rows, int write_to_wal) {
+        boolean logged = (0 != write_to_wal) && (null != wal);
+        long wal_rows = 0;
+        InsertValidationResponse resp = null;
+        PendingInsert held = null;
+        String new_token;
+        synchronized (this) {
+            if (null != recovery_error)
+                throw new RuntimeException("WAL recovery failed", recovery_error);
+
+            // Write the rows to the log
+            new_token = Long.toString(insert_count);
+            if (logged) {
+                new_token = wal.write_to_log(rows);
+                wal_rows = wal.get_appended_rows();
+            }
+
+            // Issue the insert, or hold it until recovery is done
+            if (recovering) {
+                held = new PendingInsert(rows, new_token);
+                pending.add(held);
+            }
+            else {
+                long start = System.nanoTime();
+                SnowpipeRestEvents.InsertRows event = new SnowpipeRestEvents.InsertRows();
+                event.begin();
+                resp = channel.insertRows(rows, new_token);
+                SnowpipeRestMetrics.record(metrics.insert_rows_timer, start);
+                event.end();
+                if (event.shouldCommit()) {
+                    event.channel = channel.getFullyQualifiedName();
+                    event.rows = rows.size();
+                    event.error_rows = resp.getErrorRowCount();
+                    event.token = new_token;
+                    event.commit();
+                }
+            }
+            insert_count++;
+            issued_rows += rows.size();
+            if (track_uncommitted)
+                issued.add(new long[] { SnowpipeRestOffsetWatcher.token_position(new_token), issued_rows });
+        }
+
+        // Outside of the lock, so that concurrent requests share one WAL commit
+        if (logged)
+            wal.wait_for_commit(wal_rows);
+        if (null != held)
+            resp = await_held(held);
+        return new InsertResult(resp, new_token);
+    }
+
+    // Wait for rows held during recovery to be inserted, but not for the
+    // whole replay: the request fails with a 504 as when its rows are not
+    // committed in time, as they are logged and still inserted later
+    private InsertValidationResponse await_held(PendingInsert held) {
+        try {
+            if (0 == hold_timeout_millis)
+                return held.response.get();
+            return held.response.get(hold_timeout_millis, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException te) {
+            throw new SnowpipeRestCommitTimeoutException(
+                String.format("Rows not inserted after %d ms: the WAL is still being replayed", hold_timeout_millis));
+        }
+        catch (ExecutionException ee) {
+            if (ee.getCause() instanceof RuntimeException)
+                throw (RuntimeException)ee.getCause();
+            throw new RuntimeException("WAL recovery failed", ee.getCause());
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted waiting for WAL recovery");
+        }
+    }
+
+    // Log an Idempotency-Key accepted for rows inserted into this channel
+    void logKeyRecord(byte[] record) {
+        if (null != wal)
+            wal.write_key_record(record);
+    }
+
+    // Poll the committed offset token (off the request path) and return the
+    // rows issued that it does not cover yet
+    long refreshUncommittedRows() {
+        String token = channel.getLatestCommittedOffsetToken();
+        long position = (null == token) ? -1 : SnowpipeRestOffsetWatcher.token_position(token);
+        synchronized (this) {
+            while (!issued.isEmpty() && (issued.peekFirst()[0] <= position))
+                committed_rows = issued.pollFirst()[1];
+            return issued_rows - committed_rows;
+        }
+    }
+
+    synchronized long getCommittedRows() {
+        return committed_rows;
+    }
+
+    synchronized int getIssuedCount() {
+        return issued.size();
+    }
+
+    int getWalSegmentCount() {
+        return (null == wal) ? 0 : wal.get_wal_segment_count();
+    }
+
+    // Completes once Snowflake has committed everything up to `token`
+    CompletableFuture<Void> whenCommitted(String token) {
+        return watcher.when_committed(token);
+    }
+
+    // Called once the background replay is done: insert the held rows in
+    // the order they were logged, then let new rows through directly
+    private synchronized void finish_recovery(Throwable e) {
+        if (null != e)
+            recovery_error = e;
+        for (PendingInsert p : pending) {
+            if (null != e) {
+                p.response.completeExceptionally(e);
+                continue;
+            }
+            try {
+                p.response.complete(channel.insertRows(p.rows, p.token));
+            }
+            catch (Exception ie) {
+                p.response.completeExceptionally(ie);
+            }
+        }
+        if (!pending.isEmpty())
+            logger.info(String.format("finish_recovery: inserted %d requests held during recovery", pending.size()));
+        pending.clear();
+        recovering = false;
+    }
+
+    // RECOVERING while the WAL is replayed in the background, FAILED if
+    // that replay failed, RECOVERED otherwise
+    synchronized String getRecoveryState() {
+        if (null != recovery_error)
+            return "FAILED";
+        return recovering ? "RECOVERING" : "RECOVERED";
+    }
+
+    int getReplayFilesPending() {
+        return (null == wal) ? 0 : wal.get_replay_files_pending();
+    }
+
+    long getReplayedRows() {
+        return (null == wal) ? 0 : wal.get_replayed_rows();
+    }
+
+    // Flush the channel to Snowflake and stop its threads. Only called once
+    // no request is using the channel any more.
+    void close() {
+        if (null != batcher)
+            batcher.close();
+        if (null != wal)
+            // Let a background replay finish first
+            wal.get_recovery().handle((v, e) -> null).join();
+        try {
+            channel.close().get();
+        }
+        catch (Exception e) {
+            logger.warn(String.format("close: error closing channel %s", channel.getFullyQualifiedName()), e);
+        }
+        watcher.close();
+        if (null != wal)
+            wal.close();
+    }
+
+    // Re-insert rows replayed from the WAL, under the WAL token they were logged with
+    synchronized InsertValidationResponse replayRows(List<Map<String,Object>> rows, String token) {
+        return channel.insertRows(rows, token);
+    }
+}
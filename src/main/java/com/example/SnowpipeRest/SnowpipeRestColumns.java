@@ -0,0 +1,73 @@
+package com.example.SnowpipeRest;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+// The column names of one table, each given a small id the first time a
+// row has it. Rows (SnowpipeRestRow) keep the ids of their columns and an
+// array of values, and share both the name strings and, for rows with the
+// same columns in the same order, the array of ids.
+public class SnowpipeRestColumns {
+    // A table with more distinct column names than this is probably keyed
+    // by data; its further columns are kept in plain maps instead
+    static final int MAX_COLUMNS = 4096;
+
+    private ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+    // Copied on write, guarded by this
+    private volatile String[] names = new String[0];
+    // The column ids of the last row read, for the next row to share
+    private volatile int[] last_layout = new int[0];
+
+    // The id of the column, learning it if it is new; -1 if there are
+    // already MAX_COLUMNS columns
+    int id(String name) {
+        Integer id = ids.get(name);
+        if (null != id)
+            return id;
+        synchronized (this) {
+            id = ids.get(name);
+            if (null != id)
+                return id;
+            if (names.length >= MAX_COLUMNS)
+                return -1;
+            String[] n = Arrays.copyOf(names, names.length + 1);
+            n[names.length] = name;
+            names = n;
+            ids.put(name, names.length - 1);
+            return names.length - 1;
+        }
+    }
+
+    // The id of the column, or -1 if no row has had it
+    int lookup(Object name) {
+        Integer id = ids.get(name);
+        return (null == id) ? -1 : id;
+    }
+
+    String name(int id) {
+        return names[id];
+    }
+
+    // The names, indexed by id, as of now
+    String[] names() {
+        return names;
+    }
+
+    int size() {
+        return names.length;
+    }
+
+    int[] last_layout() {
+        return last_layout;
+    }
+
+    // ids[0, n) as a shared array: the last layout if it is the same
+    int[] layout(int[] ids, int n) {
+        int[] last = last_layout;
+        if ((last.length == n) && Arrays.equals(last, 0, n, ids, 0, n))
+            return last;
+        int[] layout = Arrays.copyOf(ids, n);
+        last_layout = layout;
+        return layout;
+    }
+}
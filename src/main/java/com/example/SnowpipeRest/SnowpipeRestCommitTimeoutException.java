@@ -0,0 +1,10 @@
+package com.example.SnowpipeRest;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+public class SnowpipeRestCommitTimeoutException extends ResponseStatusException {
+    public SnowpipeRestCommitTimeoutException(String message) {
+        super(HttpStatus.GATEWAY_TIMEOUT, message);
+    }
+}
@@ -0,0 +1,51 @@
+package com.example.SnowpipeRest;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import com.github.luben.zstd.ZstdInputStream;
+
+// Request bodies sent with a Content-Encoding of gzip, deflate or zstd are
+// decompressed as they are read, so they are never held whole in either form.
+public class SnowpipeRestContentEncoding {
+    private static final int BUFFER_BYTES = 65536;
+
+    // Whether a body with this Content-Encoding must be decompressed
+    static boolean is_compressed(String encoding) {
+        return (null != encoding) && !encoding.isBlank() && !"identity".equalsIgnoreCase(encoding.trim());
+    }
+
+    // The decompressed body
+    static InputStream decode(String encoding, InputStream body) {
+        String coding = encoding.trim().toLowerCase();
+        try {
+            switch (coding) {
+                case "gzip":
+                case "x-gzip":
+                    return new GZIPInputStream(body, BUFFER_BYTES);
+                case "deflate":
+                    // HTTP's deflate is zlib-wrapped
+                    return new InflaterInputStream(body, new Inflater(), BUFFER_BYTES) {
+                        @Override
+                        public void close() throws IOException {
+                            super.close();
+                            inf.end();
+                        }
+                    };
+                case "zstd":
+                    return new BufferedInputStream(new ZstdInputStream(body), BUFFER_BYTES);
+                default:
+                    throw new SnowpipeRestUnsupportedEncodingException(String.format(
+                        "Unsupported Content-Encoding: %s (supported: gzip, deflate, zstd)", encoding));
+            }
+        }
+        catch (IOException ioe) {
+            // Only a gzip header that cannot be read
+            throw new SnowpipeRestJsonParseException("Unable to decompress body.");
+        }
+    }
+}
@@ -1,13 +1,21 @@
 package com.example.SnowpipeRest;
 
+import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
+
 import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.ExceptionHandler;
@@ -15,14 +23,25 @@ import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.bind.annotation.RestController;
 
+// On WebFlux (spring.main.web-application-type=reactive),
+// SnowpipeRestReactiveController serves /snowpipe instead
 @RestController
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
 @RequestMapping("/snowpipe")
 public class SnowpipeRestController {
     Logger logger = LoggerFactory.getLogger(SnowpipeRestController.class);
 
+    static final String MAX_ERRORS_HEADER = "X-Snowpipe-Max-Errors";
+    static final String PARTITION_KEY_HEADER = "X-Snowpipe-Partition-Key";
+    static final String SHARD_HEADER = "X-Snowpipe-Shard";
+    static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+
     @Autowired
     private SnowpipeRestRepository repos;
 
+    @Value("${snowpiperest.response.max_errors:-1}")
+    private int default_max_errors;
+
     @GetMapping("/hello")
     @ResponseBody
     public String hello() {
@@ -31,9 +50,71 @@ public class SnowpipeRestController {
 
     @PutMapping("/insert")
     @ResponseBody
-    public String insert(@RequestBody String body) {
-        SnowpipeInsertResponse sp_resp = repos.saveToSnowflake(body);
-        return sp_resp.toString();
+    public SnowpipeInsertResponse insert(@RequestBody byte[] body,
+                                         @RequestHeader(value = HttpHeaders.CONTENT_TYPE, required = false) String content_type,
+                                         @RequestHeader(value = MAX_ERRORS_HEADER, required = false) Integer max_errors,
+                                         @RequestHeader(value = PARTITION_KEY_HEADER, required = false) String partition_key,
+                                         @RequestHeader(value = IDEMPOTENCY_KEY_HEADER, required = false) String idempotency_key) {
+        return repos.saveToSnowflake(body, content_type, partition_key, idempotency_key).limitErrors(max_errors(max_errors));
+    }
+
+    // Opt-in: answer only once Snowflake has committed the rows
+    @PutMapping(value = "/insert", headers = "X-Snowpipe-Ack=committed")
+    @ResponseBody
+    public CompletableFuture<SnowpipeInsertResponse> insertCommitted(@RequestBody byte[] body,
+                                                                     @RequestHeader(value = HttpHeaders.CONTENT_TYPE, required = false) String content_type,
+                                                                     @RequestHeader(value = MAX_ERRORS_HEADER, required = false) Integer max_errors,
+                                                                     @RequestHeader(value = PARTITION_KEY_HEADER, required = false) String partition_key,
+                                                                     @RequestHeader(value = IDEMPOTENCY_KEY_HEADER, required = false) String idempotency_key) {
+        return repos.saveToSnowflakeCommitted(body, content_type, partition_key, idempotency_key).thenApply(r -> r.limitErrors(max_errors(max_errors)));
+    }
+
+    @PutMapping("/insert/{database}/{schema}/{table}")
+    @ResponseBody
+    public SnowpipeInsertResponse insertTable(@PathVariable String database, @PathVariable String schema, @PathVariable String table,
+                                              @RequestBody byte[] body,
+                                              @RequestHeader(value = HttpHeaders.CONTENT_TYPE, required = false) String content_type,
+                                              @RequestHeader(value = MAX_ERRORS_HEADER, required = false) Integer max_errors,
+                                              @RequestHeader(value = PARTITION_KEY_HEADER, required = false) String partition_key,
+                                              @RequestHeader(value = IDEMPOTENCY_KEY_HEADER, required = false) String idempotency_key) {
+        return repos.saveToSnowflake(database, schema, table, body, content_type, partition_key, idempotency_key).limitErrors(max_errors(max_errors));
+    }
+
+    @PutMapping(value = "/insert/{database}/{schema}/{table}", headers = "X-Snowpipe-Ack=committed")
+    @ResponseBody
+    public CompletableFuture<SnowpipeInsertResponse> insertTableCommitted(@PathVariable String database, @PathVariable String schema, @PathVariable String table,
+                                                                          @RequestBody byte[] body,
+                                                                          @RequestHeader(value = HttpHeaders.CONTENT_TYPE, required = false) String content_type,
+                                                                          @RequestHeader(value = MAX_ERRORS_HEADER, required = false) Integer max_errors,
+                                                                          @RequestHeader(value = PARTITION_KEY_HEADER, required = false) String partition_key,
+                                                                          @RequestHeader(value = IDEMPOTENCY_KEY_HEADER, required = false) String idempotency_key) {
+        return repos.saveToSnowflakeCommitted(database, schema, table, body, content_type, partition_key, idempotency_key).thenApply(r -> r.limitErrors(max_errors(max_errors)));
+    }
+
+    // Streams the body (NDJSON or a JSON array) into Snowflake as it arrives
+    @PutMapping("/stream")
+    @ResponseBody
+    public SnowpipeInsertResponse stream(InputStream body,
+                                         @RequestHeader(value = MAX_ERRORS_HEADER, required = false) Integer max_errors,
+                                         @RequestHeader(value = PARTITION_KEY_HEADER, required = false) String partition_key,
+                                         @RequestHeader(value = IDEMPOTENCY_KEY_HEADER, required = false) String idempotency_key) {
+        return repos.saveStreamToSnowflake(body, partition_key, idempotency_key).limitErrors(max_errors(max_errors));
+    }
+
+    @PutMapping("/stream/{database}/{schema}/{table}")
+    @ResponseBody
+    public SnowpipeInsertResponse streamTable(@PathVariable String database, @PathVariable String schema, @PathVariable String table,
+                                              InputStream body,
+                                              @RequestHeader(value = MAX_ERRORS_HEADER, required = false) Integer max_errors,
+                                              @RequestHeader(value = PARTITION_KEY_HEADER, required = false) String partition_key,
+                                              @RequestHeader(value = IDEMPOTENCY_KEY_HEADER, required = false) String idempotency_key) {
+        return repos.saveStreamToSnowflake(database, schema, table, body, partition_key, idempotency_key).limitErrors(max_errors(max_errors));
+    }
+
+    // The most error rows to echo back: the X-Snowpipe-Max-Errors header,
+    // if given (0 for just the counts), or else snowpiperest.response.max_errors
+    private int max_errors(Integer header) {
+        return (null != header) ? header : default_max_errors;
     }
 
     @ExceptionHandler(SnowpipeRestTableNotFoundException.class)
@@ -47,4 +128,23 @@ public class SnowpipeRestController {
     public ResponseEntity<String> handleBadJson(SnowpipeRestJsonParseException e) {
         return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(e.getMessage());
     }
+
+    @ExceptionHandler(SnowpipeRestBodyTooLargeException.class)
+    public ResponseEntity<String> handleBodyTooLarge(SnowpipeRestBodyTooLargeException e) {
+        return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE).body(e.getReason());
+    }
+
+    @ExceptionHandler(SnowpipeRestOverloadedException.class)
+    public ResponseEntity<String> handleOverloaded(SnowpipeRestOverloadedException e) {
+        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+            .header(HttpHeaders.RETRY_AFTER, Long.toString(e.getRetryAfterSeconds()))
+            .body(e.getReason());
+    }
+
+    @ExceptionHandler(SnowpipeRestMisdirectedException.class)
+    public ResponseEntity<String> handleMisdirected(SnowpipeRestMisdirectedException e) {
+        return ResponseEntity.status(e.getRawStatusCode())
+            .header(SHARD_HEADER, Integer.toString(e.getShard()))
+            .body(e.getReason());
+    }
 }
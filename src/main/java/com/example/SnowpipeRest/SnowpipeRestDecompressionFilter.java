@@ -0,0 +1,146 @@
+package com.example.SnowpipeRest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+// Decompresses request bodies sent with a Content-Encoding, as they are
+// read, for every endpoint on the servlet stack. The endpoints see the
+// decompressed body, without the Content-Encoding and Content-Length of the
+// compressed one. The decompressed body is limited to
+// snowpiperest.max_body_bytes, as on the reactive server, so a small
+// compressed body cannot inflate without bound.
+@Component
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+public class SnowpipeRestDecompressionFilter extends OncePerRequestFilter {
+    private static final List<String> HIDDEN_HEADERS = List.of(HttpHeaders.CONTENT_ENCODING.toLowerCase(), HttpHeaders.CONTENT_LENGTH.toLowerCase());
+
+    @Value("${snowpiperest.max_body_bytes:${snowpiperest.reactive.max_body_bytes:268435456}}")
+    private long max_body_bytes;
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        String encoding = request.getHeader(HttpHeaders.CONTENT_ENCODING);
+        if (!SnowpipeRestContentEncoding.is_compressed(encoding)) {
+            chain.doFilter(request, response);
+            return;
+        }
+        InputStream body;
+        try {
+            body = SnowpipeRestContentEncoding.decode(encoding, request.getInputStream());
+        }
+        catch (SnowpipeRestUnsupportedEncodingException | SnowpipeRestJsonParseException e) {
+            // Same as the handlers in SnowpipeRestController
+            response.setStatus(e.getRawStatusCode());
+            response.setContentType(MediaType.TEXT_PLAIN_VALUE);
+            response.getWriter().write(e.getMessage());
+            return;
+        }
+        try {
+            chain.doFilter(new DecompressedRequest(request, body, max_body_bytes), response);
+        }
+        finally {
+            body.close();
+        }
+    }
+
+    private static class DecompressedRequest extends HttpServletRequestWrapper {
+        private ServletInputStream body;
+
+        DecompressedRequest(HttpServletRequest request, InputStream body, long max_body_bytes) {
+            super(request);
+            this.body = new ServletInputStream() {
+                private boolean finished = false;
+                private long body_bytes = 0;
+
+                @Override
+                public int read() {
+                    byte[] b = new byte[1];
+                    return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xff);
+                }
+
+                // A body that does not decompress is a bad request, like
+                // one that does not parse
+                @Override
+                public int read(byte[] b, int off, int len) {
+                    int n;
+                    try {
+                        n = body.read(b, off, len);
+                    }
+                    catch (IOException ioe) {
+                        throw new SnowpipeRestJsonParseException("Unable to decompress body.");
+                    }
+                    finished = (n < 0);
+                    if ((n > 0) && ((body_bytes += n) > max_body_bytes))
+                        throw new SnowpipeRestBodyTooLargeException(max_body_bytes);
+                    return n;
+                }
+
+                @Override
+                public boolean isFinished() {
+                    return finished;
+                }
+
+                @Override
+                public boolean isReady() {
+                    return true;
+                }
+
+                @Override
+                public void setReadListener(ReadListener listener) {
+                    throw new UnsupportedOperationException("Non-blocking reads of a decompressed body");
+                }
+            };
+        }
+
+        @Override
+        public ServletInputStream getInputStream() {
+            return body;
+        }
+
+        @Override
+        public int getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public long getContentLengthLong() {
+            return -1;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return HIDDEN_HEADERS.contains(name.toLowerCase()) ? null : super.getHeader(name);
+        }
+
+        @Override
+        public Enumeration<String> getHeaders(String name) {
+            return HIDDEN_HEADERS.contains(name.toLowerCase()) ? Collections.emptyEnumeration() : super.getHeaders(name);
+        }
+
+        @Override
+        public Enumeration<String> getHeaderNames() {
+            List<String> names = Collections.list(super.getHeaderNames());
+            names.removeIf(name -> HIDDEN_HEADERS.contains(name.toLowerCase()));
+            return Collections.enumeration(names);
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package com.example.SnowpipeRest;
+
+import java.util.List;
+import java.util.concurrent.CompletionException;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+// JDK Flight Recorder events for each request and each stage of it, and for
+// the WAL's rotation, purge and replay, so that a recording of a live
+// instance (see SnowpipeRestRecordingEndpoint) shows where the time of a
+// slow request went. The stages match the timers in SnowpipeRestMetrics.
+//
+// An event that is not being recorded costs a check of shouldCommit(): its
+// fields are only filled in when it is.
+public class SnowpipeRestEvents {
+    static final String CATEGORY = "Snowpipe REST";
+
+    // Every event type, to enable them in a recording
+    static final List<Class<? extends Event>> TYPES = List.of(Request.class, Parse.class, WALAppend.class, WALFlush.class,
+        InsertRows.class, Response.class, CommitWait.class, WALRotate.class, WALPurge.class, WALReplay.class);
+
+    @Name("com.example.SnowpipeRest.Request")
+    @Label("Request")
+    @Category(CATEGORY)
+    @Description("Handling a parsed request: admission, WAL, insertRows and the response")
+    static class Request extends Event {
+        @Label("Table")
+        String table;
+        @Label("Endpoint")
+        @Description("insert, insert (committed) or stream")
+        String endpoint;
+        @Label("Rows")
+        int rows;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+        @Label("Error Rows")
+        int error_rows;
+        @Label("Failure")
+        String failure;
+
+        Request(String table, String endpoint, long bytes) {
+            this.table = table;
+            this.endpoint = endpoint;
+            this.bytes = bytes;
+        }
+
+        // Commit with the response, or with the error the request failed with
+        SnowpipeInsertResponse done(SnowpipeInsertResponse sp_resp, Throwable e) {
+            end();
+            if (shouldCommit()) {
+                if (null != sp_resp) {
+                    rows = sp_resp.getNum_attempted();
+                    error_rows = sp_resp.getNum_errors();
+                }
+                if (null != e) {
+                    Throwable cause = ((e instanceof CompletionException) && (null != e.getCause())) ? e.getCause() : e;
+                    failure = cause.getClass().getSimpleName() + ": " + cause.getMessage();
+                }
+                commit();
+            }
+            return sp_resp;
+        }
+    }
+
+    @Name("com.example.SnowpipeRest.Parse")
+    @Label("Parse")
+    @Category(CATEGORY)
+    @Description("Reading a request body into rows")
+    static class Parse extends Event {
+        @Label("Format")
+        String format;
+        @Label("Rows")
+        int rows;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+        @Label("Parse Time")
+        @Description("Time spent parsing, without waiting for the body to arrive")
+        @Timespan(Timespan.NANOSECONDS)
+        long parse_time;
+
+        Parse(String format) {
+            this.format = format;
+        }
+
+        void done(int rows, long bytes, long parse_nanos) {
+            end();
+            if (shouldCommit()) {
+                this.rows = rows;
+                this.bytes = bytes;
+                this.parse_time = parse_nanos;
+                commit();
+            }
+        }
+    }
+
+    @Name("com.example.SnowpipeRest.WALAppend")
+    @Label("WAL Append")
+    @Category(CATEGORY)
+    @Description("Appending a request's rows to the WAL, including any rotation")
+    static class WALAppend extends Event {
+        @Label("Channel")
+        String channel;
+        @Label("Rows")
+        int rows;
+        @Label("Offset Token")
+        String token;
+    }
+
+    @Name("com.example.SnowpipeRest.WALFlush")
+    @Label("WAL Flush")
+    @Category(CATEGORY)
+    @Description("Syncing the WAL to disk, per write or per group commit")
+    static class WALFlush extends Event {
+        @Label("Channel")
+        String channel;
+        @Label("Group Commit")
+        boolean group_commit;
+        @Label("Bytes")
+        @Description("Bytes appended since the last group commit")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("com.example.SnowpipeRest.InsertRows")
+    @Label("Insert Rows")
+    @Category(CATEGORY)
+    @Description("Handing rows to the Snowpipe Streaming channel")
+    static class InsertRows extends Event {
+        @Label("Channel")
+        String channel;
+        @Label("Rows")
+        int rows;
+        @Label("Error Rows")
+        long error_rows;
+        @Label("Offset Token")
+        String token;
+    }
+
+    @Name("com.example.SnowpipeRest.Response")
+    @Label("Response")
+    @Category(CATEGORY)
+    @Description("Building a response")
+    static class Response extends Event {
+        @Label("Rows")
+        int rows;
+        @Label("Error Rows")
+        int error_rows;
+    }
+
+    @Name("com.example.SnowpipeRest.CommitWait")
+    @Label("Commit Wait")
+    @Category(CATEGORY)
+    @Description("Waiting for Snowflake to commit a request's rows (X-Snowpipe-Ack: committed)")
+    static class CommitWait extends Event {
+        @Label("Offset Tokens")
+        String tokens;
+        @Label("Timed Out")
+        boolean timed_out;
+    }
+
+    @Name("com.example.SnowpipeRest.WALRotate")
+    @Label("WAL Rotate")
+    @Category(CATEGORY)
+    @Description("Starting a new WAL file, with its checkpoint of Idempotency-Keys")
+    static class WALRotate extends Event {
+        @Label("WAL Directory")
+        String wal_dir;
+        @Label("File")
+        String file;
+        @Label("File Bytes")
+        @DataAmount
+        long file_bytes;
+    }
+
+    @Name("com.example.SnowpipeRest.WALPurge")
+    @Label("WAL Purge")
+    @Category(CATEGORY)
+    @Description("Deleting the WAL files covered by the committed offset token")
+    static class WALPurge extends Event {
+        @Label("WAL Directory")
+        String wal_dir;
+        @Label("Committed Offset Token")
+        String token;
+        @Label("Files")
+        int files;
+        @Label("Purged")
+        boolean purged;
+    }
+
+    @Name("com.example.SnowpipeRest.WALReplay")
+    @Label("WAL Replay")
+    @Category(CATEGORY)
+    @Description("Replaying the WAL files not yet committed")
+    static class WALReplay extends Event {
+        @Label("WAL Directory")
+        String wal_dir;
+        @Label("Files")
+        int files;
+        @Label("Rows")
+        long rows;
+        @Label("Error Rows")
+        long error_rows;
+        @Label("Last Offset Token")
+        String token;
+    }
+}
@@ -0,0 +1,44 @@
+package com.example.SnowpipeRest;
+
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+// Request bodies sent with a Content-Type of Smile or CBOR hold the same
+// array of objects as a JSON body, in a binary encoding that is smaller
+// and cheaper to parse. Any other Content-Type is read as JSON.
+public class SnowpipeRestFormat {
+    static final MediaType SMILE = MediaType.valueOf("application/x-jackson-smile");
+    static final MediaType CBOR = MediaType.valueOf("application/cbor");
+
+    private static final SmileFactory smileFactory = new SmileFactory();
+    private static final CBORFactory cborFactory = new CBORFactory();
+
+    // The factory to parse a body of this Content-Type with, or null for
+    // JSON. Parameters such as charset do not apply, and are ignored.
+    static JsonFactory binary_factory(String content_type) {
+        if ((null == content_type) || content_type.isBlank())
+            return null;
+        int params = content_type.indexOf(';');
+        MediaType type;
+        try {
+            type = MediaType.parseMediaType((params < 0) ? content_type : content_type.substring(0, params));
+        }
+        catch (InvalidMediaTypeException e) {
+            return null;
+        }
+        if (SMILE.equalsTypeAndSubtype(type))
+            return smileFactory;
+        if (CBOR.equalsTypeAndSubtype(type))
+            return cborFactory;
+        return null;
+    }
+
+    // The name of the format, for SnowpipeRestEvents.Parse
+    static String name(JsonFactory binary_factory) {
+        return (null == binary_factory) ? JsonFactory.FORMAT_NAME_JSON : binary_factory.getFormatName();
+    }
+}
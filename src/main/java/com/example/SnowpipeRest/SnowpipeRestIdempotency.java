@@ -0,0 +1,216 @@
+package com.example.SnowpipeRest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+// The requests recently accepted on one table with an Idempotency-Key, so
+// that a retry is answered with the original response instead of inserting
+// the rows again. At most max_keys keys, and max_bytes of their records,
+// are kept, each for ttl_millis after it was first seen; a request still in
+// flight is kept regardless, and a retry of it waits for it. The response
+// kept is a summary: the counts, and only the first MAX_ERROR_ROWS error
+// rows, each cut to MAX_INPUT_CHARS.
+//
+// Each accepted key is also logged to the WAL of every channel its rows
+// went to (see SnowpipeRestWALSegment.KEY_RECORD), with the offset token of
+// its rows there, and written again at the start of every new WAL file, so
+// the keys are restored when the WAL is replayed.
+public class SnowpipeRestIdempotency {
+    Logger logger = LoggerFactory.getLogger(SnowpipeRestIdempotency.class);
+
+    static final int MAX_KEY_LENGTH = 256;
+    static final int MAX_ERROR_ROWS = 100;
+    static final int MAX_INPUT_CHARS = 1024;
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private int max_keys;
+    private long max_bytes;
+    private long ttl_millis;
+
+    // In the order they were first seen, and the bytes of their records.
+    // Guarded by this.
+    private LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>();
+    private long bytes = 0;
+
+    // One request under a key
+    static class Entry {
+        final String key;
+        final long accepted_millis;
+        // The response, detached from the request body
+        final CompletableFuture<SnowpipeInsertResponse> response = new CompletableFuture<SnowpipeInsertResponse>();
+        // The last offset token of the rows in each channel. Guarded by itself.
+        final Map<SnowpipeRestChannel, String> tokens = new LinkedHashMap<SnowpipeRestChannel, String>();
+        // The size of its record, once it is done. Guarded by the SnowpipeRestIdempotency.
+        long bytes = 0;
+
+        Entry(String key, long accepted_millis) {
+            this.key = key;
+            this.accepted_millis = accepted_millis;
+        }
+
+        Map<SnowpipeRestChannel, String> get_tokens() {
+            synchronized (tokens) {
+                return new LinkedHashMap<SnowpipeRestChannel, String>(tokens);
+            }
+        }
+    }
+
+    public SnowpipeRestIdempotency(int max_keys, long max_bytes, long ttl_millis) {
+        this.max_keys = max_keys;
+        this.max_bytes = max_bytes;
+        this.ttl_millis = ttl_millis;
+    }
+
+    static void check_key(String key) {
+        if (key.isEmpty() || (key.length() > MAX_KEY_LENGTH))
+            throw new SnowpipeRestJsonParseException(String.format("Idempotency-Key must be 1 to %d characters.", MAX_KEY_LENGTH));
+    }
+
+    // Register a new request under its key; returns the earlier request with
+    // the same key instead, if there is one
+    synchronized Entry put_if_absent(Entry entry) {
+        evict(System.currentTimeMillis());
+        Entry prior = entries.get(entry.key);
+        if (null != prior)
+            return prior;
+        entries.put(entry.key, entry);
+        evict(System.currentTimeMillis());
+        return null;
+    }
+
+    // The request is done: cache its response, and log its key to the WAL
+    // of each channel (and offset token) its rows went to
+    void accept(Entry entry, SnowpipeInsertResponse sp_resp, Map<SnowpipeRestChannel, String> tokens) {
+        SnowpipeInsertResponse detached = sp_resp.detach(MAX_ERROR_ROWS, MAX_INPUT_CHARS);
+        synchronized (entry.tokens) {
+            entry.tokens.putAll(tokens);
+        }
+        // Count the size before completing, so that an eviction never sees
+        // a done entry without it
+        count_bytes(entry, record(entry.key, entry.accepted_millis, "", detached).length);
+        entry.response.complete(detached);
+        tokens.forEach((channel, token) -> channel.logKeyRecord(record(entry.key, entry.accepted_millis, token, detached)));
+    }
+
+    // The request failed: forget the key, so that it can be retried, and
+    // fail whoever is waiting on it the same way
+    void abandon(Entry entry, Throwable e) {
+        synchronized (this) {
+            if (entries.remove(entry.key, entry))
+                bytes -= entry.bytes;
+        }
+        entry.response.completeExceptionally(e);
+    }
+
+    // Restore a key logged to the WAL of channel
+    void restore(SnowpipeRestChannel channel, ByteBuffer record) {
+        JsonNode node;
+        try {
+            ByteBuffer json = record.duplicate();
+            json.position(json.position() + 1);
+            byte[] b = new byte[json.remaining()];
+            json.get(b);
+            node = objectMapper.readTree(b);
+        }
+        catch (IOException ioe) {
+            logger.warn("restore: skipping unreadable Idempotency-Key record", ioe);
+            return;
+        }
+        long accepted_millis = node.path("accepted").asLong();
+        if (System.currentTimeMillis() - accepted_millis > ttl_millis)
+            return;
+        String key = node.path("key").asText();
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (null == entry) {
+                entry = new Entry(key, accepted_millis);
+                entry.bytes = record.remaining();
+                entry.response.complete(SnowpipeInsertResponse.read(node.path("response")));
+                entries.put(key, entry);
+                bytes += entry.bytes;
+                evict(System.currentTimeMillis());
+            }
+        }
+        synchronized (entry.tokens) {
+            entry.tokens.put(channel, node.path("token").asText());
+        }
+    }
+
+    // The records of the live keys whose rows went to channel, to write at
+    // the start of a new WAL file
+    List<byte[]> records(SnowpipeRestChannel channel) {
+        List<Entry> live;
+        synchronized (this) {
+            evict(System.currentTimeMillis());
+            live = new ArrayList<Entry>(entries.values());
+        }
+        List<byte[]> records = new ArrayList<byte[]>();
+        for (Entry entry : live) {
+            String token;
+            synchronized (entry.tokens) {
+                token = entry.tokens.get(channel);
+            }
+            if ((null != token) && entry.response.isDone() && !entry.response.isCompletedExceptionally())
+                records.add(record(entry.key, entry.accepted_millis, token, entry.response.join()));
+        }
+        return records;
+    }
+
+    private synchronized void count_bytes(Entry entry, long record_bytes) {
+        entry.bytes = record_bytes;
+        if (entries.get(entry.key) == entry)
+            bytes += record_bytes;
+    }
+
+    // Drop the keys past their time, and the oldest ones beyond max_keys or
+    // max_bytes. A request still in flight stays, so that a retry of it
+    // waits for it rather than inserting the rows again.
+    private void evict(long now) {
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            Entry oldest = it.next();
+            if ((entries.size() <= max_keys) && (bytes <= max_bytes) && (now - oldest.accepted_millis <= ttl_millis))
+                break;
+            if (!oldest.response.isDone())
+                continue;
+            it.remove();
+            bytes -= oldest.bytes;
+        }
+    }
+
+    // A WAL record: the KEY_RECORD byte, then the key as JSON
+    private static byte[] record(String key, long accepted_millis, String token, SnowpipeInsertResponse sp_resp) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(SnowpipeRestWALSegment.KEY_RECORD);
+        try (JsonGenerator gen = objectMapper.getFactory().createGenerator(out)) {
+            gen.writeStartObject();
+            gen.writeStringField("key", key);
+            gen.writeNumberField("accepted", accepted_millis);
+            gen.writeStringField("token", token);
+            gen.writeFieldName("response");
+            sp_resp.write(gen);
+            gen.writeEndObject();
+        }
+        catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,203 @@
+package com.example.SnowpipeRest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import net.snowflake.ingest.streaming.InsertValidationResponse;
+import net.snowflake.ingest.streaming.SnowflakeStreamingIngestChannel;
+import net.snowflake.ingest.utils.ErrorCode;
+import net.snowflake.ingest.utils.SFException;
+
+// A channel of the local client. Accepted rows are committed
+// commit_delay_millis after they were inserted: they are appended as JSON
+// lines to <DB>.<SCHEMA>.<TABLE>.<CHANNEL>.ndjson, and then the new length
+// of that file and the offset token replace the .offset file next to it.
+// When the channel is opened again, the rows file is cut back to the
+// committed length, so a commit is all or nothing. Rows still waiting to
+// be committed are lost in a crash, just as in Snowflake.
+public class SnowpipeRestLocalChannel implements SnowflakeStreamingIngestChannel {
+    Logger logger = LoggerFactory.getLogger(SnowpipeRestLocalChannel.class);
+
+    private SnowpipeRestLocalClient client;
+    private String database;
+    private String schema;
+    private String table;
+    private String name;
+    private File rows_file;
+    private File offset_file;
+    private ObjectMapper objectMapper = new ObjectMapper();
+    private ScheduledExecutorService committer;
+
+    private long committed_length = 0;
+    private volatile String committed = null;
+    private volatile boolean closed = false;
+
+    public SnowpipeRestLocalChannel(SnowpipeRestLocalClient client, String dir, String database, String schema, String table, String name) {
+        this.client = client;
+        this.database = database.toUpperCase();
+        this.schema = schema.toUpperCase();
+        this.table = table.toUpperCase();
+        this.name = name;
+        this.rows_file = new File(dir, getFullyQualifiedName() + ".ndjson");
+        this.offset_file = new File(dir, getFullyQualifiedName() + ".offset");
+        try {
+            if (offset_file.exists()) {
+                String offset = new String(Files.readAllBytes(offset_file.toPath()), StandardCharsets.UTF_8);
+                int sep = offset.indexOf(' ');
+                committed_length = Long.parseLong(offset.substring(0, sep));
+                committed = offset.substring(sep + 1);
+            }
+            try (RandomAccessFile raf = new RandomAccessFile(rows_file, "rw")) {
+                raf.setLength(committed_length);
+            }
+        }
+        catch (IOException ioe) {
+            throw new RuntimeException(String.format("Cannot read %s", offset_file), ioe);
+        }
+        this.committer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "local-commit-" + getFullyQualifiedName());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @Override
+    public String getFullyQualifiedName() {
+        return String.format("%s.%s.%s.%s", database, schema, table, name);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String getDBName() {
+        return database;
+    }
+
+    @Override
+    public String getSchemaName() {
+        return schema;
+    }
+
+    @Override
+    public String getTableName() {
+        return table;
+    }
+
+    @Override
+    public String getFullyQualifiedTableName() {
+        return String.format("%s.%s.%s", database, schema, table);
+    }
+
+    @Override
+    public boolean isValid() {
+        return !closed;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    // Completes once every accepted row is committed
+    @Override
+    public CompletableFuture<Void> close() {
+        closed = true;
+        committer.shutdown();
+        return CompletableFuture.runAsync(() -> {
+            try {
+                committer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        });
+    }
+
+    @Override
+    public InsertValidationResponse insertRow(Map<String,Object> row, String offsetToken) {
+        return insertRows(List.of(row), offsetToken);
+    }
+
+    @Override
+    public InsertValidationResponse insertRows(Iterable<Map<String,Object>> rows, String offsetToken) {
+        if (closed)
+            throw new SFException(ErrorCode.CLOSED_CHANNEL, getFullyQualifiedName());
+        if (client.insert_latency_micros > 0)
+            LockSupport.parkNanos(client.insert_latency_micros * 1000);
+
+        InsertValidationResponse resp = new InsertValidationResponse();
+        StringBuilder lines = new StringBuilder();
+        long idx = 0;
+        for (Map<String,Object> row : rows) {
+            long n = client.rows_accepted.incrementAndGet();
+            if ((client.crash_after_rows > 0) && (n > client.crash_after_rows)) {
+                logger.error(String.format("Simulating a crash after %d rows", client.crash_after_rows));
+                Runtime.getRuntime().halt(1);
+            }
+            if ((client.error_every > 0) && (0 == n % client.error_every)) {
+                InsertValidationResponse.InsertError insertError = new InsertValidationResponse.InsertError(row, idx);
+                insertError.setException(new SFException(ErrorCode.INVALID_VALUE_ROW, "injected by the local channel"));
+                resp.addError(insertError);
+            }
+            else {
+                try {
+                    lines.append(objectMapper.writeValueAsString(row)).append('\n');
+                }
+                catch (JsonProcessingException jpe) {
+                    throw new SFException(jpe, ErrorCode.INVALID_FORMAT_ROW, jpe.getMessage());
+                }
+            }
+            idx++;
+        }
+
+        // Tasks with the same delay run in the order they were scheduled,
+        // so rows are committed in offset token order
+        String batch = lines.toString();
+        committer.schedule(() -> commit(batch, offsetToken), client.commit_delay_millis, TimeUnit.MILLISECONDS);
+        return resp;
+    }
+
+    private void commit(String batch, String offsetToken) {
+        try {
+            byte[] bytes = batch.getBytes(StandardCharsets.UTF_8);
+            try (FileOutputStream out = new FileOutputStream(rows_file, true)) {
+                out.write(bytes);
+                out.getFD().sync();
+            }
+            committed_length += bytes.length;
+            File tmp = new File(offset_file.getPath() + ".tmp");
+            Files.write(tmp.toPath(), String.format("%d %s", committed_length, offsetToken).getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp.toPath(), offset_file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            committed = offsetToken;
+        }
+        catch (IOException ioe) {
+            logger.error(String.format("commit: error committing %s in %s", offsetToken, getFullyQualifiedName()), ioe);
+        }
+    }
+
+    @Override
+    public String getLatestCommittedOffsetToken() {
+        return committed;
+    }
+}
@@ -0,0 +1,77 @@
+package com.example.SnowpipeRest;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.snowflake.ingest.streaming.OpenChannelRequest;
+import net.snowflake.ingest.streaming.SnowflakeStreamingIngestChannel;
+import net.snowflake.ingest.streaming.SnowflakeStreamingIngestClient;
+
+// An in-process stand-in for the Snowpipe Streaming client, selected with
+// snowpiperest.client=local. Its channels "commit" rows to files under a
+// local directory, so the service can be load tested, and crashed and
+// recovered, without Snowflake or a network.
+public class SnowpipeRestLocalClient implements SnowflakeStreamingIngestClient {
+    Logger logger = LoggerFactory.getLogger(SnowpipeRestLocalClient.class);
+
+    private String name;
+    private String dir;
+    long insert_latency_micros;
+    long commit_delay_millis;
+    long error_every;
+    long crash_after_rows;
+
+    // Rows accepted by all channels, for error injection and crash simulation
+    AtomicLong rows_accepted = new AtomicLong(0);
+    private boolean closed = false;
+
+    public SnowpipeRestLocalClient(String name, String dir, long insert_latency_micros, long commit_delay_millis,
+                                   long error_every, long crash_after_rows) {
+        this.name = name;
+        this.dir = dir;
+        this.insert_latency_micros = insert_latency_micros;
+        this.commit_delay_millis = commit_delay_millis;
+        this.error_every = error_every;
+        this.crash_after_rows = crash_after_rows;
+        new File(dir).mkdirs();
+        logger.info(String.format("Using the local client in %s: insert latency %d us, commit delay %d ms, error every %d rows, crash after %d rows",
+            dir, insert_latency_micros, commit_delay_millis, error_every, crash_after_rows));
+    }
+
+    @Override
+    public SnowflakeStreamingIngestChannel openChannel(OpenChannelRequest request) {
+        return new SnowpipeRestLocalChannel(this, dir, request.getDBName(), request.getSchemaName(), request.getTableName(), request.getChannelName());
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public void setRefreshToken(String refreshToken) {
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public Map<String, String> getLatestCommittedOffsetTokens(List<SnowflakeStreamingIngestChannel> channels) {
+        Map<String, String> tokens = new LinkedHashMap<String, String>();
+        channels.forEach(c -> tokens.put(c.getFullyQualifiedName(), c.getLatestCommittedOffsetToken()));
+        return tokens;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+}
@@ -0,0 +1,93 @@
+package com.example.SnowpipeRest;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+// The service's meters, exposed on /actuator/prometheus. Timers cover each
+// stage of a request (parse, WAL append, WAL flush, insertRows, response);
+// counters cover what was ingested; gauges report each channel's WAL backlog.
+@Component
+public class SnowpipeRestMetrics {
+    private MeterRegistry registry;
+
+    Timer parse_timer;
+    Timer wal_append_timer;
+    Timer wal_flush_timer;
+    Timer insert_rows_timer;
+    Timer response_timer;
+
+    private Counter rows_counter;
+    private Counter bytes_counter;
+    private Counter error_rows_counter;
+    private Counter rejected_counter;
+    private Counter idempotent_hits_counter;
+
+    public SnowpipeRestMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        this.parse_timer = stage_timer("snowpiperest.parse", "Parsing a request body");
+        this.wal_append_timer = stage_timer("snowpiperest.wal.append", "Appending rows to the WAL");
+        this.wal_flush_timer = stage_timer("snowpiperest.wal.flush", "Syncing the WAL to disk");
+        this.insert_rows_timer = stage_timer("snowpiperest.insert_rows", "Handing rows to the Snowpipe Streaming channel");
+        this.response_timer = stage_timer("snowpiperest.response", "Building a response");
+        this.rows_counter = Counter.builder("snowpiperest.rows").description("Rows received").register(registry);
+        this.bytes_counter = Counter.builder("snowpiperest.bytes").baseUnit("bytes").description("Request bytes received").register(registry);
+        this.error_rows_counter = Counter.builder("snowpiperest.error_rows").description("Rows rejected by Snowflake").register(registry);
+        this.rejected_counter = Counter.builder("snowpiperest.rejected").description("Requests turned away by admission control").register(registry);
+        this.idempotent_hits_counter = Counter.builder("snowpiperest.idempotent_hits").description("Retries answered from the Idempotency-Key cache").register(registry);
+    }
+
+    private Timer stage_timer(String name, String description) {
+        return Timer.builder(name)
+            .description(description)
+            .publishPercentileHistogram()
+            .register(registry);
+    }
+
+    static void record(Timer timer, long start_nanos) {
+        timer.record(System.nanoTime() - start_nanos, TimeUnit.NANOSECONDS);
+    }
+
+    void record_insert(int rows, long bytes, int error_rows) {
+        rows_counter.increment(rows);
+        bytes_counter.increment(bytes);
+        error_rows_counter.increment(error_rows);
+    }
+
+    void record_rejected() {
+        rejected_counter.increment();
+    }
+
+    void record_idempotent_hit() {
+        idempotent_hits_counter.increment();
+    }
+
+    // Backlog gauges for one channel's WAL; removed when the WAL is closed
+    List<Meter> register_wal(SnowpipeRestWAL wal, String channel_name) {
+        return List.of(
+            Gauge.builder("snowpiperest.wal.segments", wal, SnowpipeRestWAL::get_wal_segment_count)
+                .description("WAL files not yet purged")
+                .tag("channel", channel_name)
+                .register(registry),
+            Gauge.builder("snowpiperest.wal.backlog_rows", wal, SnowpipeRestWAL::get_uncommitted_rows)
+                .description("Rows logged to the WAL and not yet covered by the committed offset token")
+                .tag("channel", channel_name)
+                .register(registry),
+            Gauge.builder("snowpiperest.wal.commit_lag", wal, SnowpipeRestWAL::get_commit_lag_seconds)
+                .description("Age of the oldest logged row not yet committed to Snowflake")
+                .baseUnit("seconds")
+                .tag("channel", channel_name)
+                .register(registry));
+    }
+
+    void remove(List<Meter> meters) {
+        meters.forEach(registry::remove);
+    }
+}
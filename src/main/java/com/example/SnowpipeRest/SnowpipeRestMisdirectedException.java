@@ -0,0 +1,20 @@
+package com.example.SnowpipeRest;
+
+import org.springframework.web.server.ResponseStatusException;
+
+// Rows for a shard that this instance does not own: 421 Misdirected Request,
+// so the caller can send them to the instance that does
+public class SnowpipeRestMisdirectedException extends ResponseStatusException {
+    static final int MISDIRECTED_REQUEST = 421;
+
+    private int shard;
+
+    public SnowpipeRestMisdirectedException(int shard) {
+        super(MISDIRECTED_REQUEST, String.format("Shard %d is not owned by this instance", shard), null);
+        this.shard = shard;
+    }
+
+    public int getShard() {
+        return shard;
+    }
+}
@@ -0,0 +1,111 @@
+package com.example.SnowpipeRest;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.snowflake.ingest.streaming.SnowflakeStreamingIngestChannel;
+
+// Watches a channel's committed offset token on behalf of every request
+// waiting for its rows to be committed. A single thread polls Snowflake,
+// and only while someone is waiting, and completes all the waiters whose
+// token the committed offset has reached.
+public class SnowpipeRestOffsetWatcher {
+    Logger logger = LoggerFactory.getLogger(SnowpipeRestOffsetWatcher.class);
+
+    private SnowflakeStreamingIngestChannel channel;
+    private long poll_millis;
+    private Thread watcher;
+
+    // Guarded by this
+    private TreeMap<Long, List<CompletableFuture<Void>>> waiters = new TreeMap<Long, List<CompletableFuture<Void>>>();
+    private long committed = -1;
+
+    public SnowpipeRestOffsetWatcher(SnowflakeStreamingIngestChannel channel, long poll_millis) {
+        this.channel = channel;
+        this.poll_millis = poll_millis;
+        watcher = new Thread(this::watch_loop, "offset-watcher-" + channel.getName());
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    // Offset tokens are either WAL positions ("file_0000000007:3") or,
+    // without a WAL, a plain insert counter. Both map to an increasing long.
+    static long token_position(String token) {
+        int sep = token.indexOf(':');
+        if (sep < 0)
+            return Long.parseLong(token);
+        String fname = token.substring(0, sep);
+        long idx = Long.parseLong(fname.substring(fname.lastIndexOf('_') + 1));
+        return (idx << 32) | Long.parseLong(token.substring(sep + 1));
+    }
+
+    synchronized CompletableFuture<Void> when_committed(String token) {
+        CompletableFuture<Void> waiter = new CompletableFuture<Void>();
+        long position = token_position(token);
+        if (position <= committed) {
+            waiter.complete(null);
+            return waiter;
+        }
+        waiters.computeIfAbsent(position, p -> new ArrayList<CompletableFuture<Void>>()).add(waiter);
+        // Wake the watcher if it was idle
+        notifyAll();
+        return waiter;
+    }
+
+    void close() {
+        watcher.interrupt();
+    }
+
+    private void watch_loop() {
+        while (true) {
+            try {
+                synchronized (this) {
+                    while (waiters.isEmpty())
+                        wait();
+                }
+                poll();
+                Thread.sleep(poll_millis);
+            }
+            catch (InterruptedException ie) {
+                return;
+            }
+            catch (Exception e) {
+                // Keep watching; the next poll will try again
+                logger.warn(String.format("watch_loop: error polling %s", channel.getName()), e);
+            }
+        }
+    }
+
+    private void poll() {
+        String token = channel.getLatestCommittedOffsetToken();
+        if (null == token)
+            return;
+        long position = token_position(token);
+
+        List<CompletableFuture<Void>> done = new ArrayList<CompletableFuture<Void>>();
+        synchronized (this) {
+            committed = Math.max(committed, position);
+            NavigableMap<Long, List<CompletableFuture<Void>>> reached = waiters.headMap(committed, true);
+            reached.values().forEach(done::addAll);
+            reached.clear();
+
+            // Forget the waiters that gave up (timed out) in the meantime
+            Iterator<Map.Entry<Long, List<CompletableFuture<Void>>>> it = waiters.entrySet().iterator();
+            while (it.hasNext()) {
+                List<CompletableFuture<Void>> l = it.next().getValue();
+                l.removeIf(CompletableFuture::isDone);
+                if (l.isEmpty())
+                    it.remove();
+            }
+        }
+        done.forEach(w -> w.complete(null));
+    }
+}
@@ -0,0 +1,17 @@
+package com.example.SnowpipeRest;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+public class SnowpipeRestOverloadedException extends ResponseStatusException {
+    private long retry_after_seconds;
+
+    public SnowpipeRestOverloadedException(String message, long retry_after_seconds) {
+        super(HttpStatus.TOO_MANY_REQUESTS, message);
+        this.retry_after_seconds = retry_after_seconds;
+    }
+
+    public long getRetryAfterSeconds() {
+        return retry_after_seconds;
+    }
+}
@@ -0,0 +1,297 @@
+package com.example.SnowpipeRest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.boot.web.embedded.netty.NettyReactiveWebServerFactory;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferLimitException;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ReactiveHttpOutputMessage;
+import org.springframework.web.reactive.function.BodyInserter;
+import org.springframework.web.reactive.function.server.RouterFunction;
+import org.springframework.web.reactive.function.server.RouterFunctions;
+import org.springframework.web.reactive.function.server.ServerRequest;
+import org.springframework.web.reactive.function.server.ServerResponse;
+import org.springframework.web.server.ServerWebInputException;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+import reactor.netty.resources.LoopResources;
+
+// The /snowpipe/insert endpoints on WebFlux and Netty, selected with
+// spring.main.web-application-type=reactive in place of
+// SnowpipeRestController. A body is parsed chunk by chunk on the Netty
+// event loops as it arrives, and the rows are handed to the channel and
+// WAL, which block, on a fixed pool of worker threads, so the number of
+// threads does not grow with the number of concurrent requests.
+// Requests and responses are the same as with SnowpipeRestController.
+@Configuration
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class SnowpipeRestReactiveController {
+    Logger logger = LoggerFactory.getLogger(SnowpipeRestReactiveController.class);
+
+    private static final int DECOMPRESS_CHUNK_BYTES = 65536;
+    private static final MediaType TEXT_PLAIN = new MediaType(MediaType.TEXT_PLAIN, StandardCharsets.UTF_8);
+
+    @Autowired
+    private SnowpipeRestRepository repos;
+
+    @Autowired
+    private SnowpipeRestMetrics metrics;
+
+    private ObjectMapper objectMapper = new ObjectMapper();
+    private ExecutorService worker_pool;
+    private Scheduler workers;
+
+    @Value("${snowpiperest.reactive.event_loops:0}")
+    private int num_event_loops;
+
+    @Value("${snowpiperest.reactive.workers:0}")
+    private int num_workers;
+
+    @Value("${snowpiperest.max_body_bytes:${snowpiperest.reactive.max_body_bytes:268435456}}")
+    private int max_body_bytes;
+
+    @Value("${snowpiperest.response.max_errors:-1}")
+    private int default_max_errors;
+
+    @PostConstruct
+    private void init() {
+        int n = (num_workers > 0) ? num_workers : Runtime.getRuntime().availableProcessors();
+        AtomicInteger idx = new AtomicInteger(0);
+        worker_pool = Executors.newFixedThreadPool(n, r -> {
+            Thread t = new Thread(r, "ingest-worker-" + idx.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+        workers = Schedulers.fromExecutorService(worker_pool, "ingest-worker");
+        logger.info(String.format("Serving /snowpipe on Netty with %d ingest workers", n));
+    }
+
+    @PreDestroy
+    private void close() {
+        workers.dispose();
+        worker_pool.shutdown();
+    }
+
+    // Netty rather than Tomcat, which is also on the classpath
+    @Bean
+    public NettyReactiveWebServerFactory nettyReactiveWebServerFactory() {
+        NettyReactiveWebServerFactory factory = new NettyReactiveWebServerFactory();
+        if (num_event_loops > 0)
+            factory.addServerCustomizers(server -> server.runOn(LoopResources.create("ingest-event-loop", num_event_loops, true)));
+        return factory;
+    }
+
+    @Bean
+    public RouterFunction<ServerResponse> snowpipeRoutes() {
+        return RouterFunctions.route()
+            .GET("/snowpipe/hello", request -> ServerResponse.ok().contentType(TEXT_PLAIN).bodyValue("Hello, there."))
+            .PUT("/snowpipe/insert", this::insert)
+            .PUT("/snowpipe/insert/{database}/{schema}/{table}", this::insertTable)
+            .build();
+    }
+
+    private Mono<ServerResponse> insert(ServerRequest request) {
+        boolean committed = is_committed(request);
+        String partition_key = request.headers().firstHeader(SnowpipeRestController.PARTITION_KEY_HEADER);
+        String idempotency_key = request.headers().firstHeader(SnowpipeRestController.IDEMPOTENCY_KEY_HEADER);
+        return respond(request, read_batch(request, repos.getColumns())
+            .publishOn(workers)
+            .flatMap(batch -> committed
+                ? Mono.fromFuture(repos.saveToSnowflakeCommitted(batch, partition_key, idempotency_key))
+                : Mono.just(repos.saveToSnowflake(batch, partition_key, idempotency_key))));
+    }
+
+    private Mono<ServerResponse> insertTable(ServerRequest request) {
+        boolean committed = is_committed(request);
+        String database = request.pathVariable("database");
+        String schema = request.pathVariable("schema");
+        String table = request.pathVariable("table");
+        String partition_key = request.headers().firstHeader(SnowpipeRestController.PARTITION_KEY_HEADER);
+        String idempotency_key = request.headers().firstHeader(SnowpipeRestController.IDEMPOTENCY_KEY_HEADER);
+        return respond(request, read_batch(request, repos.getColumns(database, schema, table))
+            .publishOn(workers)
+            .flatMap(batch -> committed
+                ? Mono.fromFuture(repos.saveToSnowflakeCommitted(database, schema, table, batch, partition_key, idempotency_key))
+                : Mono.just(repos.saveToSnowflake(database, schema, table, batch, partition_key, idempotency_key))));
+    }
+
+    // Opt-in: answer only once Snowflake has committed the rows
+    private static boolean is_committed(ServerRequest request) {
+        return "committed".equals(request.headers().firstHeader("X-Snowpipe-Ack"));
+    }
+
+    // Parse the body as it arrives, on the event loop that receives it, into
+    // rows keyed by the table's columns
+    private Mono<SnowpipeRestBatch> read_batch(ServerRequest request, SnowpipeRestColumns columns) {
+        return Mono.defer(() -> {
+            long content_length = request.headers().contentLength().orElse(0);
+            if (content_length > max_body_bytes)
+                return Mono.error(new SnowpipeRestBodyTooLargeException(max_body_bytes));
+            String encoding = request.headers().firstHeader(HttpHeaders.CONTENT_ENCODING);
+            JsonFactory binary_factory = SnowpipeRestFormat.binary_factory(request.headers().firstHeader(HttpHeaders.CONTENT_TYPE));
+            if (null != binary_factory)
+                return read_binary_batch(request, encoding, binary_factory, columns);
+            if (SnowpipeRestContentEncoding.is_compressed(encoding))
+                return read_compressed_batch(request, encoding, columns);
+            SnowpipeRestBatchParser parser = new SnowpipeRestBatchParser(objectMapper, (int)content_length, columns);
+            AtomicInteger body_bytes = new AtomicInteger(0);
+            // Spans the arrival of the body; its parse time does not
+            SnowpipeRestEvents.Parse event = new SnowpipeRestEvents.Parse(JsonFactory.FORMAT_NAME_JSON);
+            event.begin();
+            return request.bodyToFlux(DataBuffer.class)
+                .doOnNext(buffer -> {
+                    try {
+                        if (body_bytes.addAndGet(buffer.readableByteCount()) > max_body_bytes)
+                            throw new SnowpipeRestBodyTooLargeException(max_body_bytes);
+                        parser.feed(buffer.asByteBuffer());
+                    }
+                    finally {
+                        DataBufferUtils.release(buffer);
+                    }
+                })
+                .then(Mono.fromCallable(() -> {
+                    SnowpipeRestBatch batch = parser.finish();
+                    metrics.parse_timer.record(parser.get_parse_nanos(), TimeUnit.NANOSECONDS);
+                    event.done(batch.size(), batch.getBytes(), parser.get_parse_nanos());
+                    return batch;
+                }));
+        });
+    }
+
+    // A compressed body is small, so it is collected whole and then
+    // decompressed and parsed as a stream on a worker thread, where reading
+    // from the decompressor may block
+    private Mono<SnowpipeRestBatch> read_compressed_batch(ServerRequest request, String encoding, SnowpipeRestColumns columns) {
+        return DataBufferUtils.join(request.bodyToFlux(DataBuffer.class), max_body_bytes)
+            .onErrorMap(DataBufferLimitException.class,
+                e -> new SnowpipeRestBodyTooLargeException(max_body_bytes))
+            .switchIfEmpty(Mono.error(() -> new SnowpipeRestJsonParseException("Unable to decompress body.")))
+            .publishOn(workers)
+            .map(compressed -> {
+                SnowpipeRestBatchParser parser = new SnowpipeRestBatchParser(objectMapper, 0, columns);
+                SnowpipeRestEvents.Parse event = new SnowpipeRestEvents.Parse(JsonFactory.FORMAT_NAME_JSON);
+                event.begin();
+                byte[] chunk = new byte[DECOMPRESS_CHUNK_BYTES];
+                long body_bytes = 0;
+                try (InputStream body = SnowpipeRestContentEncoding.decode(encoding, compressed.asInputStream(true))) {
+                    int n;
+                    while ((n = body.read(chunk)) > 0) {
+                        if ((body_bytes += n) > max_body_bytes)
+                            throw new SnowpipeRestBodyTooLargeException(max_body_bytes);
+                        parser.feed(ByteBuffer.wrap(chunk, 0, n));
+                    }
+                }
+                catch (IOException ioe) {
+                    throw new SnowpipeRestJsonParseException("Unable to decompress body.");
+                }
+                SnowpipeRestBatch batch = parser.finish();
+                metrics.parse_timer.record(parser.get_parse_nanos(), TimeUnit.NANOSECONDS);
+                event.done(batch.size(), batch.getBytes(), parser.get_parse_nanos());
+                return batch;
+            });
+    }
+
+    // A binary (Smile or CBOR) body is small too, and Jackson has no
+    // non-blocking parser for CBOR, so it is also collected whole, then
+    // decompressed if need be and parsed on a worker thread
+    private Mono<SnowpipeRestBatch> read_binary_batch(ServerRequest request, String encoding, JsonFactory binary_factory,
+                                                      SnowpipeRestColumns columns) {
+        return DataBufferUtils.join(request.bodyToFlux(DataBuffer.class), max_body_bytes)
+            .onErrorMap(DataBufferLimitException.class,
+                e -> new SnowpipeRestBodyTooLargeException(max_body_bytes))
+            .publishOn(workers)
+            .map(buffer -> {
+                try (InputStream in = SnowpipeRestContentEncoding.is_compressed(encoding)
+                        ? SnowpipeRestContentEncoding.decode(encoding, buffer.asInputStream(true)) : buffer.asInputStream(true)) {
+                    byte[] body = in.readNBytes(max_body_bytes + 1);
+                    if (body.length > max_body_bytes)
+                        throw new SnowpipeRestBodyTooLargeException(max_body_bytes);
+                    return body;
+                }
+                catch (IOException ioe) {
+                    throw new SnowpipeRestJsonParseException("Unable to decompress body.");
+                }
+            })
+            .defaultIfEmpty(new byte[0])
+            .map(body -> {
+                long start = System.nanoTime();
+                SnowpipeRestEvents.Parse event = new SnowpipeRestEvents.Parse(SnowpipeRestFormat.name(binary_factory));
+                event.begin();
+                SnowpipeRestBatch batch = SnowpipeRestBatch.parse(objectMapper, body, columns, binary_factory);
+                SnowpipeRestMetrics.record(metrics.parse_timer, start);
+                event.done(batch.size(), batch.getBytes(), System.nanoTime() - start);
+                return batch;
+            });
+    }
+
+    // The most error rows to echo back, as in SnowpipeRestController
+    private int max_errors(ServerRequest request) {
+        String header = request.headers().firstHeader(SnowpipeRestController.MAX_ERRORS_HEADER);
+        return (null != header) ? Integer.parseInt(header.trim()) : default_max_errors;
+    }
+
+    // Serialize the response straight into a buffer of the connection
+    private static BodyInserter<SnowpipeInsertResponse, ReactiveHttpOutputMessage> write_response(SnowpipeInsertResponse sp_resp) {
+        return (message, context) -> {
+            DataBuffer buffer = message.bufferFactory().allocateBuffer();
+            try (OutputStream out = buffer.asOutputStream()) {
+                sp_resp.write(out);
+            }
+            catch (IOException ioe) {
+                DataBufferUtils.release(buffer);
+                return Mono.error(ioe);
+            }
+            return message.writeWith(Mono.just(buffer));
+        };
+    }
+
+    // The same status codes and bodies as the handlers in SnowpipeRestController
+    private Mono<ServerResponse> respond(ServerRequest request, Mono<SnowpipeInsertResponse> sp_resp) {
+        return Mono.fromCallable(() -> max_errors(request))
+            .onErrorMap(NumberFormatException.class, e -> new ServerWebInputException(String.format("Invalid %s header", SnowpipeRestController.MAX_ERRORS_HEADER)))
+            .flatMap(max_errors -> sp_resp.map(r -> r.limitErrors(max_errors)))
+            .flatMap(r -> ServerResponse.ok().contentType(MediaType.APPLICATION_JSON).body(write_response(r)))
+            .onErrorResume(SnowpipeRestTableNotFoundException.class,
+                e -> ServerResponse.status(e.getStatus()).contentType(TEXT_PLAIN).bodyValue(e.getMessage()))
+            .onErrorResume(SnowpipeRestJsonParseException.class,
+                e -> ServerResponse.status(e.getStatus()).contentType(TEXT_PLAIN).bodyValue(e.getMessage()))
+            .onErrorResume(SnowpipeRestUnsupportedEncodingException.class,
+                e -> ServerResponse.status(e.getStatus()).contentType(TEXT_PLAIN).bodyValue(e.getMessage()))
+            .onErrorResume(SnowpipeRestBodyTooLargeException.class,
+                e -> ServerResponse.status(e.getStatus()).contentType(TEXT_PLAIN).bodyValue(e.getMessage()))
+            .onErrorResume(SnowpipeRestOverloadedException.class,
+                e -> ServerResponse.status(e.getStatus()).contentType(TEXT_PLAIN)
+                    .header(HttpHeaders.RETRY_AFTER, Long.toString(e.getRetryAfterSeconds()))
+                    .bodyValue(e.getReason()))
+            .onErrorResume(SnowpipeRestMisdirectedException.class,
+                e -> ServerResponse.status(e.getRawStatusCode()).contentType(TEXT_PLAIN)
+                    .header(SnowpipeRestController.SHARD_HEADER, Integer.toString(e.getShard()))
+                    .bodyValue(e.getReason()));
+    }
+}
@@ -0,0 +1,191 @@
+package com.example.SnowpipeRest;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.ParseException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.Event;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.annotation.DeleteOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Selector;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.boot.actuate.endpoint.web.WebEndpointResponse;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+// Profiles a live instance with JDK Flight Recorder, including the events
+// in SnowpipeRestEvents, at /actuator/flightrecording:
+//   GET              - the state of the current (or last) recording, and
+//                      the finished recordings that can be downloaded
+//   POST             - start a recording, with a JSON body of (all optional)
+//                      {"seconds": 60, "settings": "default", "threshold_millis": 0};
+//                      it stops by itself after that many seconds
+//   DELETE           - stop the recording early
+//   GET /{name}      - download a finished recording
+// Only one recording runs at a time. Recordings are written to
+// snowpiperest.jfr.dir, which keeps the last snowpiperest.jfr.max_files.
+//
+// Not exposed by default: add flightrecording to
+// management.endpoints.web.exposure.include only behind authentication.
+// The JDK events that record the environment, system properties and
+// command lines are left out, as these hold the Snowflake credentials.
+@Component
+@Endpoint(id = "flightrecording")
+public class SnowpipeRestRecordingEndpoint {
+    Logger logger = LoggerFactory.getLogger(SnowpipeRestRecordingEndpoint.class);
+
+    static final int STATUS_CONFLICT = 409;
+
+    private static final String FILE_PREFIX = "snowpiperest_";
+    private static final String FILE_SUFFIX = ".jfr";
+    // JDK events that would record secrets
+    static final List<String> SECRET_EVENTS = List.of("jdk.InitialEnvironmentVariable", "jdk.InitialSystemProperty",
+        "jdk.JVMInformation", "jdk.SystemProcess");
+
+    private static final DateTimeFormatter FILE_TIME = DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss");
+
+    @Value("${snowpiperest.jfr.dir:jfr}")
+    private String jfr_dir;
+
+    @Value("${snowpiperest.jfr.max_seconds:600}")
+    private long max_seconds;
+
+    @Value("${snowpiperest.jfr.max_files:5}")
+    private int max_files;
+
+    // The current or last recording, and its file. Guarded by this.
+    private Recording recording = null;
+    private Path destination = null;
+
+    @ReadOperation
+    public synchronized Map<String,Object> status() {
+        Map<String,Object> status = new LinkedHashMap<String,Object>();
+        if (null == recording)
+            status.put("state", "NONE");
+        else {
+            status.put("name", destination.getFileName().toString());
+            status.put("state", recording.getState().toString());
+            status.put("started", String.valueOf(recording.getStartTime()));
+            status.put("seconds", recording.getDuration().getSeconds());
+        }
+        status.put("files", recording_files().map(f -> f.getName()).collect(Collectors.toList()));
+        return status;
+    }
+
+    // threshold_millis leaves out the SnowpipeRestEvents shorter than it,
+    // to record only the slow requests and stages
+    @WriteOperation
+    public synchronized WebEndpointResponse<Map<String,Object>> start(@Nullable Long seconds, @Nullable String settings,
+                                                                     @Nullable Long threshold_millis) {
+        if (is_running())
+            return error(STATUS_CONFLICT, String.format("Recording %s is already running", destination.getFileName()));
+        long duration = (null == seconds) ? 60 : seconds;
+        if ((duration < 1) || (duration > max_seconds))
+            return error(WebEndpointResponse.STATUS_BAD_REQUEST, String.format("seconds must be 1 to %d", max_seconds));
+        long threshold = (null == threshold_millis) ? 0 : threshold_millis;
+        if (threshold < 0)
+            return error(WebEndpointResponse.STATUS_BAD_REQUEST, "threshold_millis must not be negative");
+        Configuration configuration;
+        try {
+            configuration = Configuration.getConfiguration((null == settings) ? "default" : settings);
+        }
+        catch (IOException | ParseException e) {
+            return error(WebEndpointResponse.STATUS_BAD_REQUEST, String.format("Unknown settings: %s (use default or profile)", settings));
+        }
+
+        Recording next = new Recording(configuration);
+        for (Class<? extends Event> type : SnowpipeRestEvents.TYPES)
+            next.enable(type).withThreshold(Duration.ofMillis(threshold));
+        for (String name : SECRET_EVENTS)
+            next.disable(name);
+        Path dir = Paths.get(jfr_dir);
+        Path file = dir.resolve(FILE_PREFIX + LocalDateTime.now().format(FILE_TIME) + FILE_SUFFIX);
+        try {
+            Files.createDirectories(dir);
+            purge_old_files();
+            next.setName(file.getFileName().toString());
+            next.setToDisk(true);
+            next.setDestination(file);
+            next.setDuration(Duration.ofSeconds(duration));
+            next.start();
+        }
+        catch (IOException | RuntimeException e) {
+            next.close();
+            logger.warn(String.format("start: unable to start recording %s", file), e);
+            return error(WebEndpointResponse.STATUS_INTERNAL_SERVER_ERROR, String.format("Unable to start recording: %s", e.getMessage()));
+        }
+        if (null != recording)
+            recording.close();
+        recording = next;
+        destination = file;
+        logger.info(String.format("Started recording %s for %d s (settings %s, threshold %d ms)", file, duration,
+            configuration.getName(), threshold));
+        return new WebEndpointResponse<Map<String,Object>>(status(), WebEndpointResponse.STATUS_OK);
+    }
+
+    // The recording is written out when it stops
+    @DeleteOperation
+    public synchronized Map<String,Object> stop() {
+        if (is_running()) {
+            recording.stop();
+            logger.info(String.format("Stopped recording %s", destination));
+        }
+        return status();
+    }
+
+    @ReadOperation(produces = "application/octet-stream")
+    public WebEndpointResponse<Resource> download(@Selector String name) {
+        File file = recording_files().filter(f -> f.getName().equals(name)).findFirst().orElse(null);
+        if (null == file)
+            return new WebEndpointResponse<Resource>(WebEndpointResponse.STATUS_NOT_FOUND);
+        return new WebEndpointResponse<Resource>(new FileSystemResource(file), WebEndpointResponse.STATUS_OK);
+    }
+
+    private boolean is_running() {
+        return (null != recording) && ((RecordingState.RUNNING == recording.getState()) || (RecordingState.DELAYED == recording.getState()));
+    }
+
+    private static WebEndpointResponse<Map<String,Object>> error(int status, String message) {
+        Map<String,Object> body = new LinkedHashMap<String,Object>();
+        body.put("message", message);
+        return new WebEndpointResponse<Map<String,Object>>(body, status);
+    }
+
+    // The finished recordings, oldest first. A running recording's file is
+    // only written when it stops.
+    private Stream<File> recording_files() {
+        File[] files = new File(jfr_dir).listFiles((d, n) -> n.startsWith(FILE_PREFIX) && n.endsWith(FILE_SUFFIX));
+        return (null == files) ? Stream.empty() : Arrays.stream(files).filter(File::isFile).sorted();
+    }
+
+    // Make room for one more recording
+    private void purge_old_files() {
+        List<File> files = recording_files().collect(Collectors.toList());
+        for (int i = 0; i <= files.size() - Math.max(max_files, 1); i++) {
+            if (files.get(i).delete())
+                logger.info(String.format("Purged recording %s", files.get(i)));
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.example.SnowpipeRest;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.stereotype.Component;
+
+// Reports WAL recovery progress for each channel. Part of the readiness
+// group: a channel whose replay failed is not ready, and neither is one
+// still replaying in the background, as requests to it are held until the
+// replay is done (or snowpiperest.ack.timeout_millis). With
+// snowpiperest.wal.ready_while_recovering=1 a replaying channel is ready.
+@Component
+public class SnowpipeRestRecoveryHealthIndicator implements HealthIndicator {
+    @Autowired
+    private SnowpipeRestRepository repos;
+
+    @Value("${snowpiperest.wal.ready_while_recovering:0}")
+    private int ready_while_recovering;
+
+    @Override
+    public Health health() {
+        boolean failed = false;
+        boolean recovering = false;
+        Map<String,Object> details = new LinkedHashMap<String,Object>();
+        for (SnowpipeRestChannel channel : repos.getChannels()) {
+            Map<String,Object> channel_details = new LinkedHashMap<String,Object>();
+            String state = channel.getRecoveryState();
+            channel_details.put("state", state);
+            channel_details.put("replay_files_pending", channel.getReplayFilesPending());
+            channel_details.put("replayed_rows", channel.getReplayedRows());
+            details.put(channel.getFullyQualifiedName(), channel_details);
+            failed = failed || "FAILED".equals(state);
+            recovering = recovering || "RECOVERING".equals(state);
+        }
+        boolean ready = !failed && (!recovering || (0 != ready_while_recovering));
+        return (ready ? Health.up() : Health.outOfService()).withDetails(details).build();
+    }
+}
@@ -1,9 +1,7 @@
 package com.example.SnowpipeRest;
 
+import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.core.type.TypeReference;
 
 import net.snowflake.ingest.streaming.InsertValidationResponse;
 import net.snowflake.ingest.streaming.OpenChannelRequest;
@@ -11,14 +9,28 @@ import net.snowflake.ingest.streaming.SnowflakeStreamingIngestChannel;
 import net.snowflake.ingest.streaming.SnowflakeStreamingIngestClient;
 import net.snowflake.ingest.streaming.SnowflakeStreamingIngestClientFactory;
 
-import java.util.Map;
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
@@ -28,9 +40,66 @@ public class SnowpipeRestRepository {
 
     private ObjectMapper objectMapper = new ObjectMapper();
     private SnowflakeStreamingIngestClient snowpipe_client;
-    private SnowflakeStreamingIngestChannel channel;
-    private Integer insert_count = 0;
-    private SnowpipeRestWAL wal;
+    private SnowpipeRestWALConfig wal_config;
+
+    private SnowpipeRestAdmission admission;
+
+    // With sharding, the shards this instance owns; null without
+    private SnowpipeRestSharding sharding = null;
+    private int[] shards;
+
+    @Autowired
+    private SnowpipeRestMetrics metrics;
+
+    // Closing a table waits for its requests, replay and channels, so it is
+    // done on threads of its own rather than the common pool
+    static final int CLOSE_THREADS = 4;
+    private ExecutorService closer = Executors.newFixedThreadPool(CLOSE_THREADS, r -> {
+        Thread t = new Thread(r, "table-closer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // The table configured with snowpipe.database/schema/table is always
+    // open. Other tables are opened on first use and kept in an LRU cache
+    // of at most max_open_tables; evicted tables are closed in the
+    // background once their in-flight requests are done. A table is opened
+    // outside the lock, by the first request for it, while the others for
+    // it wait on its entry in opening; it is not opened again until the
+    // evicted instance (in closing) is closed, so that one WAL and channel
+    // at a time use its directory and channel name. All guarded by tables.
+    private SnowpipeRestTable default_table;
+    private LinkedHashMap<String, SnowpipeRestTable> tables = new LinkedHashMap<String, SnowpipeRestTable>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SnowpipeRestTable> eldest) {
+            if (size() <= max_open_tables)
+                return false;
+            SnowpipeRestTable evicted = eldest.getValue();
+            logger.info(String.format("Evicting table %s", evicted.getName()));
+            CompletableFuture<Void> closed = CompletableFuture.runAsync(evicted::close, closer);
+            closing.put(eldest.getKey(), closed);
+            closed.whenComplete((v, e) -> {
+                synchronized (tables) {
+                    closing.remove(eldest.getKey(), closed);
+                }
+            });
+            return true;
+        }
+    };
+    private Map<String, CompletableFuture<SnowpipeRestTable>> opening = new HashMap<String, CompletableFuture<SnowpipeRestTable>>();
+    private Map<String, CompletableFuture<Void>> closing = new HashMap<String, CompletableFuture<Void>>();
+
+    // The column dictionary of each table, for the rows read for it. Rows
+    // are read before their table is opened, so dictionaries are kept for
+    // more tables than are open, in an LRU cache of their own (the default
+    // table's is always kept). Guarded by itself.
+    private SnowpipeRestColumns default_columns = new SnowpipeRestColumns();
+    private LinkedHashMap<String, SnowpipeRestColumns> columns = new LinkedHashMap<String, SnowpipeRestColumns>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SnowpipeRestColumns> eldest) {
+            return size() > 2 * max_open_tables;
+        }
+    };
 
     @Value("${snowpipe.name}")
     private String suffix;
@@ -65,8 +134,163 @@ public class SnowpipeRestRepository {
     @Value("${snowpiperest.wal.dir:wal}")
     private String wal_dir;
 
+    @Value("${snowpiperest.wal.segment_bytes:67108864}")
+    private int wal_segment_bytes;
+
+    @Value("${snowpiperest.wal.group_commit.bytes:1048576}")
+    private long wal_group_commit_bytes;
+
+    @Value("${snowpiperest.wal.group_commit.micros:1000}")
+    private long wal_group_commit_micros;
+
+    @Value("${snowpiperest.wal.commit_poll_millis:1000}")
+    private long wal_commit_poll_millis;
+
+    @Value("${snowpiperest.wal.replay_batch_bytes:4194304}")
+    private long wal_replay_batch_bytes;
+
+    @Value("${snowpiperest.wal.background_replay:0}")
+    private int wal_background_replay;
+
+    @Value("${snowpiperest.wal.compression:none}")
+    private String wal_compression;
+
+    @Value("${snowpiperest.ack.poll_millis:100}")
+    private long ack_poll_millis;
+
+    @Value("${snowpiperest.ack.timeout_millis:20000}")
+    private long ack_timeout_millis;
+
+    @Value("${snowpiperest.channels:1}")
+    private int num_channels;
+
+    @Value("${snowpiperest.shards.count:0}")
+    private int num_shards;
+
+    @Value("${snowpiperest.shards.claim:auto}")
+    private String shards_claim;
+
+    @Value("${snowpiperest.shards.max_claimed:0}")
+    private int shards_max_claimed;
+
+    @Value("${snowpiperest.shards.key_field:}")
+    private String shards_key_field;
+
+    @Value("${snowpiperest.client:snowflake}")
+    private String client_type;
+
+    @Value("${snowpiperest.local.dir:local}")
+    private String local_dir;
+
+    @Value("${snowpiperest.local.insert_latency_micros:0}")
+    private long local_insert_latency_micros;
+
+    @Value("${snowpiperest.local.commit_delay_millis:1000}")
+    private long local_commit_delay_millis;
+
+    @Value("${snowpiperest.local.error_every:0}")
+    private long local_error_every;
+
+    @Value("${snowpiperest.local.crash_after_rows:0}")
+    private long local_crash_after_rows;
+
+    @Value("${snowpiperest.admission.max_inflight_rows:1000000}")
+    private long admission_max_inflight_rows;
+
+    @Value("${snowpiperest.admission.max_inflight_bytes:268435456}")
+    private long admission_max_inflight_bytes;
+
+    @Value("${snowpiperest.admission.max_uncommitted_rows:5000000}")
+    private long admission_max_uncommitted_rows;
+
+    @Value("${snowpiperest.admission.max_wal_segments:64}")
+    private int admission_max_wal_segments;
+
+    @Value("${snowpiperest.admission.poll_millis:1000}")
+    private long admission_poll_millis;
+
+    @Value("${snowpiperest.admission.max_retry_after_seconds:60}")
+    private long admission_max_retry_after_seconds;
+
+    @Value("${snowpiperest.tables.max_open:16}")
+    private int max_open_tables;
+
+    @Value("${snowpiperest.stream.batch_bytes:4194304}")
+    private long stream_batch_bytes;
+
+    @Value("${snowpiperest.batch.linger_micros:0}")
+    private long batch_linger_micros;
+
+    @Value("${snowpiperest.batch.max_rows:10000}")
+    private int batch_max_rows;
+
+    @Value("${snowpiperest.batch.max_bytes:4194304}")
+    private long batch_max_bytes;
+
+    @Value("${snowpiperest.idempotency.max_keys:100000}")
+    private int idempotency_max_keys;
+
+    @Value("${snowpiperest.idempotency.ttl_seconds:600}")
+    private long idempotency_ttl_seconds;
+
+    @Value("${snowpiperest.idempotency.max_bytes:16777216}")
+    private long idempotency_max_bytes;
+
     @PostConstruct
     private void init() {
+        snowpipe_client = make_client();
+
+        // Create channel
+        if (null == database)
+            throw new RuntimeException("Must specify database");
+        if (null == schema)
+            throw new RuntimeException("Must specify schema");
+        if (null == table)
+            throw new RuntimeException("Must specify table");
+        if (num_channels < 1)
+            throw new RuntimeException("Must specify at least 1 channel");
+        if (max_open_tables < 1)
+            throw new RuntimeException("Must allow at least 1 open table");
+        if (num_shards > 0) {
+            if (num_channels > 1)
+                throw new RuntimeException("Sharding uses one channel per shard; snowpiperest.channels must be 1");
+            sharding = new SnowpipeRestSharding(num_shards, shards_key_field, wal_dir);
+            shards = sharding.claim(shards_claim, shards_max_claimed);
+        }
+        wal_config = new SnowpipeRestWALConfig(wal_flush, wal_segment_bytes, wal_group_commit_bytes, wal_group_commit_micros,
+                wal_commit_poll_millis, wal_replay_batch_bytes, wal_background_replay, SnowpipeRestWALCodec.codec_id(wal_compression));
+        default_table = open_table(database, schema, table, wal_dir);
+        admission = new SnowpipeRestAdmission(admission_max_inflight_rows, admission_max_inflight_bytes, admission_max_uncommitted_rows,
+                admission_max_wal_segments, admission_poll_millis, admission_max_retry_after_seconds, this::getChannels);
+    }
+
+    // Close every table, so their channels are flushed and their WALs
+    // closed, and wait for those evicted earlier. With sharding, then let
+    // other instances claim the shards.
+    @PreDestroy
+    private void shutdown() {
+        List<CompletableFuture<Void>> closed = new ArrayList<CompletableFuture<Void>>();
+        closed.add(CompletableFuture.runAsync(default_table::close, closer));
+        synchronized (tables) {
+            tables.values().forEach(t -> closed.add(CompletableFuture.runAsync(t::close, closer)));
+            tables.clear();
+            closed.addAll(closing.values());
+        }
+        closed.forEach(f -> f.handle((v, e) -> null).join());
+        closer.shutdown();
+        if (null != sharding)
+            sharding.release();
+    }
+
+    // The Snowpipe Streaming client, or the local stand-in for it
+    private SnowflakeStreamingIngestClient make_client() {
+        String client_name = "SNOWPIPE_REST_CLIENT_" + suffix;
+        if ("local".equals(client_type))
+            return new SnowpipeRestLocalClient(client_name, local_dir, local_insert_latency_micros, local_commit_delay_millis,
+                    local_error_every, local_crash_after_rows);
+        if (!"snowflake".equals(client_type))
+            throw new RuntimeException(String.format("Unknown client: %s", client_type));
+
         // get Snowflake credentials and put them in props
         java.util.Properties props = new Properties();
         props.put("url", snowflake_url);
@@ -77,22 +301,146 @@ public class SnowpipeRestRepository {
         // Connect to Snowflake with credentials.
         try {
             // Make Snowflake Streaming Ingest Client
-            snowpipe_client = SnowflakeStreamingIngestClientFactory.builder("SNOWPIPE_REST_CLIENT_" + suffix)
+            return SnowflakeStreamingIngestClientFactory.builder(client_name)
                     .setProperties(props).build();
         } catch (Exception e) {
             // Handle Exception for Snowpipe Streaming objects
             throw new RuntimeException(e);
         }
+    }
 
-        // Create channel
-        if (null == database)
-            throw new RuntimeException("Must specify database");
-        if (null == schema)
-            throw new RuntimeException("Must specify schema");
-        if (null == table)
-            throw new RuntimeException("Must specify table");
+    private static String table_key(String database, String schema, String table) {
+        return String.format("%s.%s.%s", database, schema, table).toUpperCase();
+    }
+
+    // Table names end up in WAL directory names, so only plain (unquoted)
+    // identifiers are accepted
+    private static boolean is_identifier(String name) {
+        return name.matches("[A-Za-z_][A-Za-z0-9_$]*");
+    }
+
+    private SnowpipeRestTable get_table(String database, String schema, String table) {
+        String key = table_key(database, schema, table);
+        if (key.equals(default_table.getName()))
+            return default_table;
+        if (!is_identifier(database) || !is_identifier(schema) || !is_identifier(table))
+            throw new SnowpipeRestTableNotFoundException(String.format("Table not found (or no permissions): %s", key));
+        CompletableFuture<SnowpipeRestTable> opened;
+        CompletableFuture<Void> closed = null;
+        boolean opener = false;
+        synchronized (tables) {
+            SnowpipeRestTable t = tables.get(key);
+            if (null != t)
+                return t;
+            opened = opening.get(key);
+            if (null == opened) {
+                opened = new CompletableFuture<SnowpipeRestTable>();
+                opening.put(key, opened);
+                closed = closing.get(key);
+                opener = true;
+            }
+        }
+        if (!opener)
+            return join_table(opened);
+
+        try {
+            if (null != closed)
+                closed.handle((v, e) -> null).join();
+            // Each table gets its own WAL namespace
+            SnowpipeRestTable t = open_table(database, schema, table, new File(new File(wal_dir, "tables"), key).getPath());
+            synchronized (tables) {
+                opening.remove(key);
+                tables.put(key, t);
+            }
+            opened.complete(t);
+            return t;
+        }
+        catch (RuntimeException e) {
+            synchronized (tables) {
+                opening.remove(key);
+            }
+            opened.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    // Wait for another request to open the table
+    private static SnowpipeRestTable join_table(CompletableFuture<SnowpipeRestTable> opened) {
         try {
-            OpenChannelRequest request1 = OpenChannelRequest.builder("SNOWPIPE_REST_CHANNEL_" + suffix)
+            return opened.join();
+        }
+        catch (CompletionException ce) {
+            if (ce.getCause() instanceof RuntimeException)
+                throw (RuntimeException)ce.getCause();
+            throw ce;
+        }
+    }
+
+    // The column dictionary to read rows for the table with
+    public SnowpipeRestColumns getColumns(String database, String schema, String table) {
+        String key = table_key(database, schema, table);
+        if (key.equals(default_table.getName()))
+            return default_columns;
+        synchronized (columns) {
+            return columns.computeIfAbsent(key, k -> new SnowpipeRestColumns());
+        }
+    }
+
+    public SnowpipeRestColumns getColumns() {
+        return default_columns;
+    }
+
+    // Get the table and hold it open while the request uses it; an evicted
+    // table is closed, so open it again
+    private SnowpipeRestTable acquire_table(String database, String schema, String table) {
+        while (true) {
+            SnowpipeRestTable t = get_table(database, schema, table);
+            if (t.acquire())
+                return t;
+        }
+    }
+
+    private SnowpipeRestTable open_table(String database, String schema, String table, String table_wal_dir) {
+        List<SnowpipeRestChannel> channels = new ArrayList<SnowpipeRestChannel>();
+        int[] ids = (null == sharding) ? IntStream.range(0, num_channels).toArray() : shards;
+        // Created first, for the channels' WAL replay to restore the keys into
+        SnowpipeRestIdempotency idempotency = (idempotency_max_keys > 0)
+            ? new SnowpipeRestIdempotency(idempotency_max_keys, idempotency_max_bytes,
+                TimeUnit.SECONDS.toMillis(idempotency_ttl_seconds)) : null;
+        try {
+            for (int id : ids)
+                channels.add(open_channel(database, schema, table, table_wal_dir, id, idempotency));
+        }
+        catch (RuntimeException e) {
+            channels.forEach(SnowpipeRestChannel::close);
+            throw e;
+        }
+        if (null != sharding)
+            return new SnowpipeRestTable(table_key(database, schema, table), channels, shards, idempotency);
+        return new SnowpipeRestTable(table_key(database, schema, table), channels, idempotency);
+    }
+
+    // Channel 0 keeps the original channel name and WAL directory, so a
+    // single-channel deployment can still replay what it wrote before
+    // the pool existed. The other channels get their own name and their
+    // own WAL subdirectory. With sharding, idx is the shard, whose channel
+    // name and WAL subdirectory are the same on every instance.
+    private SnowpipeRestChannel open_channel(String database, String schema, String table, String table_wal_dir, int idx,
+                                             SnowpipeRestIdempotency idempotency) {
+        String channel_name = "SNOWPIPE_REST_CHANNEL_" + suffix;
+        String channel_wal_dir = table_wal_dir;
+        if (null != sharding) {
+            channel_name = channel_name + "_SHARD_" + idx;
+            channel_wal_dir = new File(table_wal_dir, "shard_" + idx).getPath();
+        }
+        else if (idx > 0) {
+            channel_name = channel_name + "_" + idx;
+            channel_wal_dir = new File(table_wal_dir, "channel_" + idx).getPath();
+        }
+
+        SnowflakeStreamingIngestChannel channel;
+        try {
+            OpenChannelRequest request1 = OpenChannelRequest.builder(channel_name)
                     .setDBName(database)
                     .setSchemaName(schema)
                     .setTableName(table)
@@ -101,60 +449,435 @@ public class SnowpipeRestRepository {
             channel = snowpipe_client.openChannel(request1);
         } catch (Exception e) {
             // Handle Exception for Snowpipe Streaming objects
-            e.printStackTrace();
+            logger.warn(String.format("open_channel: error opening channel %s on %s.%s.%s", channel_name, database, schema, table), e);
             throw new SnowpipeRestTableNotFoundException(String.format("Table not found (or no permissions): %s.%s.%s", database.toUpperCase(), schema.toUpperCase(), table.toUpperCase()));
         }
+        logger.info(String.format("Opened channel %s (WAL directory: %s)", channel_name, channel_wal_dir));
 
-        if (0 != wal_enable)
-            wal = new SnowpipeRestWAL(this, wal_dir, wal_flush);
+        SnowpipeRestChannel sp_channel = new SnowpipeRestChannel(channel, wal_enable, channel_wal_dir, wal_config, ack_poll_millis,
+                ack_timeout_millis, metrics, idempotency);
+        if (batch_linger_micros > 0)
+            sp_channel.enableBatching(batch_linger_micros, batch_max_rows, batch_max_bytes);
+        if (SnowpipeRestAdmission.polls_backlog(admission_max_uncommitted_rows, admission_max_wal_segments))
+            sp_channel.trackUncommittedRows();
+        return sp_channel;
     }
 
-    String getLatestCommittedOffsetToken() {
-        return channel.getLatestCommittedOffsetToken();
+    // The channels of all open tables
+    List<SnowpipeRestChannel> getChannels() {
+        List<SnowpipeRestChannel> channels = new ArrayList<SnowpipeRestChannel>(default_table.getChannels());
+        synchronized (tables) {
+            tables.values().forEach(t -> channels.addAll(t.getChannels()));
+        }
+        return channels;
     }
 
-    public SnowpipeInsertResponse saveToSnowflake(String body) {
-        return saveToSnowflake(body, wal_enable);
+    // content_type (which may be null) gives the encoding of the body: see
+    // SnowpipeRestFormat. partition_key (which may be null) picks the shard
+    // of the rows, with sharding. idempotency_key (which may be null) makes
+    // a retry of the request return the first response instead of
+    // inserting the rows again.
+    public SnowpipeInsertResponse saveToSnowflake(byte[] body, String content_type, String partition_key, String idempotency_key) {
+        return saveToSnowflake(database, schema, table, body, content_type, partition_key, idempotency_key);
     }
 
-    public SnowpipeInsertResponse saveToSnowflake(String body, int write_to_wal) {
-        // Parse body
-        List<Object> rowStrings;
-        List<Map<String,Object>> rows;
+    public SnowpipeInsertResponse saveToSnowflake(String database, String schema, String table, byte[] body, String content_type,
+                                                  String partition_key, String idempotency_key) {
+        return saveToSnowflake(database, schema, table, parse(body, content_type, getColumns(database, schema, table)), partition_key,
+                idempotency_key);
+    }
+
+    public SnowpipeInsertResponse saveToSnowflake(SnowpipeRestBatch batch, String partition_key, String idempotency_key) {
+        return saveToSnowflake(database, schema, table, batch, partition_key, idempotency_key);
+    }
+
+    public SnowpipeInsertResponse saveToSnowflake(String database, String schema, String table, SnowpipeRestBatch batch, String partition_key,
+                                                  String idempotency_key) {
+        SnowpipeRestEvents.Request event = new SnowpipeRestEvents.Request(table_key(database, schema, table), "insert", batch.getBytes());
+        event.begin();
         try {
-            // Parse JSON body
-            JsonNode jsonNode = objectMapper.readTree(body);
-            // List of strings for error reporting
-            rowStrings = objectMapper.convertValue(jsonNode, new TypeReference<List<Object>>() {});
-            // List of Map<String,Object> for inserting
-            rows = objectMapper.convertValue(jsonNode, new TypeReference<List<Map<String, Object>>>(){});
+            return event.done(insert(database, schema, table, batch, partition_key, idempotency_key), null);
         }
-        catch (JsonProcessingException je) {
-            // throw new RuntimeException("Unable to parse body as list of JSON strings.");
-            throw new SnowpipeRestJsonParseException("Unable to parse body as list of JSON strings.");
+        catch (RuntimeException e) {
+            event.done(null, e);
+            throw e;
         }
+    }
 
-        // Write the rows to the log
-        String new_token = Integer.toString(insert_count);
-        if (0 != write_to_wal)
-            new_token = wal.write_to_log(rows);
+    private SnowpipeInsertResponse insert(String database, String schema, String table, SnowpipeRestBatch batch, String partition_key,
+                                          String idempotency_key) {
+        check_key(idempotency_key);
+        SnowpipeRestTable t = acquire_table(database, schema, table);
+        SnowpipeRestIdempotency.Entry entry = null;
+        try {
+            entry = key_entry(t, idempotency_key);
+            SnowpipeRestIdempotency.Entry prior = (null == entry) ? null : t.getIdempotency().put_if_absent(entry);
+            if (null != prior)
+                return retry_response(prior);
+            admit(batch);
+            try {
+                List<Route> routes = route(t, batch.getRows(), request_channel(t, partition_key));
+                SnowpipeInsertResponse sp_resp = make_response(batch, submit_routes(routes, batch.size(), batch.getBytes()));
+                if (null != entry)
+                    t.getIdempotency().accept(entry, sp_resp, route_tokens(routes));
+                return sp_resp;
+            }
+            finally {
+                admission.release(batch.size(), batch.getBytes());
+            }
+        }
+        catch (RuntimeException e) {
+            if (null != entry)
+                t.getIdempotency().abandon(entry, e);
+            throw e;
+        }
+        finally {
+            t.release();
+        }
+    }
 
-        // Issue the insert
-        InsertValidationResponse resp = channel.insertRows(rows, new_token);
+    public CompletableFuture<SnowpipeInsertResponse> saveToSnowflakeCommitted(byte[] body, String content_type, String partition_key,
+                                                                              String idempotency_key) {
+        return saveToSnowflakeCommitted(database, schema, table, body, content_type, partition_key, idempotency_key);
+    }
 
-        // Make response
+    // Insert, and complete only once Snowflake has committed the rows
+    public CompletableFuture<SnowpipeInsertResponse> saveToSnowflakeCommitted(String database, String schema, String table, byte[] body,
+                                                                              String content_type, String partition_key, String idempotency_key) {
+        return saveToSnowflakeCommitted(database, schema, table, parse(body, content_type, getColumns(database, schema, table)),
+                partition_key, idempotency_key);
+    }
+
+    public CompletableFuture<SnowpipeInsertResponse> saveToSnowflakeCommitted(SnowpipeRestBatch batch, String partition_key,
+                                                                              String idempotency_key) {
+        return saveToSnowflakeCommitted(database, schema, table, batch, partition_key, idempotency_key);
+    }
+
+    public CompletableFuture<SnowpipeInsertResponse> saveToSnowflakeCommitted(String database, String schema, String table, SnowpipeRestBatch batch,
+                                                                              String partition_key, String idempotency_key) {
+        SnowpipeRestEvents.Request event = new SnowpipeRestEvents.Request(table_key(database, schema, table), "insert (committed)",
+            batch.getBytes());
+        event.begin();
         try {
-            SnowpipeInsertResponse sp_resp = new SnowpipeInsertResponse(rows.size(), rows.size() - resp.getErrorRowCount(), resp.getErrorRowCount());
-            for (InsertValidationResponse.InsertError insertError : resp.getInsertErrors()) {
-                int idx = (int)insertError.getRowIndex();
-                sp_resp.addError(idx, objectMapper.writeValueAsString(rowStrings.get(idx)), insertError.getMessage());
-            }
+            return insert_committed(database, schema, table, batch, partition_key, idempotency_key).whenComplete(event::done);
+        }
+        catch (RuntimeException e) {
+            event.done(null, e);
+            throw e;
+        }
+    }
 
-            insert_count++;
+    private CompletableFuture<SnowpipeInsertResponse> insert_committed(String database, String schema, String table, SnowpipeRestBatch batch,
+                                                                       String partition_key, String idempotency_key) {
+        check_key(idempotency_key);
+        SnowpipeRestTable t = acquire_table(database, schema, table);
+        SnowpipeRestIdempotency.Entry entry = null;
+        SnowpipeRestIdempotency.Entry prior;
+        try {
+            entry = key_entry(t, idempotency_key);
+            prior = (null == entry) ? null : t.getIdempotency().put_if_absent(entry);
+        }
+        catch (RuntimeException e) {
+            t.release();
+            throw e;
+        }
+        if (null != prior) {
+            // The earlier request's rows may not be committed yet either
+            metrics.record_idempotent_hit();
+            return prior.response
+                .thenCompose(r -> when_committed(prior.get_tokens(), r.copy()))
+                .whenComplete((v, e) -> t.release());
+        }
+
+        List<Route> routes;
+        InsertValidationResponse resp;
+        try {
+            admit(batch);
+        }
+        catch (RuntimeException e) {
+            if (null != entry)
+                t.getIdempotency().abandon(entry, e);
+            t.release();
+            throw e;
+        }
+        try {
+            routes = route(t, batch.getRows(), request_channel(t, partition_key));
+            resp = submit_routes(routes, batch.size(), batch.getBytes());
+        }
+        catch (RuntimeException e) {
+            if (null != entry)
+                t.getIdempotency().abandon(entry, e);
+            t.release();
+            admission.release(batch.size(), batch.getBytes());
+            throw e;
+        }
+        SnowpipeInsertResponse sp_resp = make_response(batch, resp);
+        Map<SnowpipeRestChannel, String> tokens = route_tokens(routes);
+        if (null != entry)
+            t.getIdempotency().accept(entry, sp_resp, tokens);
+        // Keep the table open, and the rows in flight, until the wait is over
+        return when_committed(tokens, sp_resp)
+            .whenComplete((v, e) -> {
+                t.release();
+                admission.release(batch.size(), batch.getBytes());
+            });
+    }
+
+    public SnowpipeInsertResponse saveStreamToSnowflake(InputStream body, String partition_key, String idempotency_key) {
+        return saveStreamToSnowflake(database, schema, table, body, partition_key, idempotency_key);
+    }
+
+    // Insert a body of any size, a batch of about stream_batch_bytes at a
+    // time, while it is still arriving. All the batches go to the same
+    // channel (or, when routing on a key field, each row's shard), so the
+    // rows are inserted in the order they were sent.
+    public SnowpipeInsertResponse saveStreamToSnowflake(String database, String schema, String table, InputStream body, String partition_key,
+                                                        String idempotency_key) {
+        SnowpipeRestEvents.Request event = new SnowpipeRestEvents.Request(table_key(database, schema, table), "stream", 0);
+        event.begin();
+        try {
+            return event.done(stream(database, schema, table, body, partition_key, idempotency_key, event), null);
+        }
+        catch (RuntimeException e) {
+            event.done(null, e);
+            throw e;
+        }
+    }
+
+    // Counts the bytes of the body in event as they are read
+    private SnowpipeInsertResponse stream(String database, String schema, String table, InputStream body, String partition_key,
+                                          String idempotency_key, SnowpipeRestEvents.Request event) {
+        check_key(idempotency_key);
+        SnowpipeRestTable t = acquire_table(database, schema, table);
+        SnowpipeRestIdempotency.Entry entry = null;
+        List<SnowpipeInsertError> errors = new ArrayList<SnowpipeInsertError>();
+        int num_rows = 0;
+        int num_errors = 0;
+        try {
+            entry = key_entry(t, idempotency_key);
+            SnowpipeRestIdempotency.Entry prior = (null == entry) ? null : t.getIdempotency().put_if_absent(entry);
+            if (null != prior)
+                return retry_response(prior);
+            // A stream holds at most one batch in memory, so only the backlog is checked
+            check_admission();
+            SnowpipeRestStreamReader reader = new SnowpipeRestStreamReader(objectMapper, body, getColumns(database, schema, table));
+            SnowpipeRestChannel channel = request_channel(t, partition_key);
+            // The token of the last rows in each channel
+            Map<SnowpipeRestChannel, String> tokens = new LinkedHashMap<SnowpipeRestChannel, String>();
+            List<Map<String,Object>> rows;
+            while (!(rows = reader.next_batch(stream_batch_bytes)).isEmpty()) {
+                List<Route> routes = route(t, rows, channel);
+                InsertValidationResponse resp = submit_routes(routes, rows.size(), reader.get_batch_bytes());
+                tokens.putAll(route_tokens(routes));
+                for (InsertValidationResponse.InsertError insertError : resp.getInsertErrors()) {
+                    int idx = (int)insertError.getRowIndex();
+                    errors.add(new SnowpipeInsertError(num_rows + idx, rows.get(idx), insertError.getMessage()));
+                }
+                num_rows += rows.size();
+                num_errors += resp.getErrorRowCount();
+                event.bytes += reader.get_batch_bytes();
+                metrics.record_insert(rows.size(), reader.get_batch_bytes(), resp.getErrorRowCount());
+            }
+            SnowpipeInsertResponse sp_resp = new SnowpipeInsertResponse(num_rows, num_rows - num_errors, num_errors, errors);
+            if (null != entry)
+                t.getIdempotency().accept(entry, sp_resp, tokens);
             return sp_resp;
         }
-        catch (JsonProcessingException je) {
-            throw new RuntimeException(je);
+        catch (RuntimeException e) {
+            if (null != entry)
+                t.getIdempotency().abandon(entry, e);
+            throw e;
+        }
+        finally {
+            t.release();
+        }
+    }
+
+    // The rows of a request that go to one channel, with their indexes in
+    // the request (null if they are all of its rows), and their offset
+    // token once inserted
+    private static class Route {
+        SnowpipeRestChannel channel;
+        List<Map<String,Object>> rows;
+        int[] idx;
+        String token;
+
+        Route(SnowpipeRestChannel channel, List<Map<String,Object>> rows, int[] idx) {
+            this.channel = channel;
+            this.rows = rows;
+            this.idx = idx;
+        }
+    }
+
+    // The channel for the rows of a request: that of the shard of its
+    // partition key, if it has one, or else the next one in the pool
+    private SnowpipeRestChannel request_channel(SnowpipeRestTable t, String partition_key) {
+        if ((null == sharding) || (null == partition_key))
+            return t.nextChannel();
+        return shard_channel(t, sharding.shard_of(partition_key));
+    }
+
+    private SnowpipeRestChannel shard_channel(SnowpipeRestTable t, int shard) {
+        SnowpipeRestChannel channel = t.shardChannel(shard);
+        if (null == channel)
+            throw new SnowpipeRestMisdirectedException(shard);
+        return channel;
+    }
+
+    // When routing on a key field, split the rows by the shard of their
+    // key; rows without one go to channel. Every row is checked before any
+    // is inserted, so a misdirected request inserts nothing.
+    private List<Route> route(SnowpipeRestTable t, List<Map<String,Object>> rows, SnowpipeRestChannel channel) {
+        if ((null == sharding) || (null == sharding.get_key_field()))
+            return List.of(new Route(channel, rows, null));
+        SnowpipeRestChannel[] row_channels = new SnowpipeRestChannel[rows.size()];
+        LinkedHashMap<SnowpipeRestChannel, Integer> counts = new LinkedHashMap<SnowpipeRestChannel, Integer>();
+        for (int i = 0; i < rows.size(); i++) {
+            int shard = sharding.shard_of(rows.get(i));
+            row_channels[i] = (shard < 0) ? channel : shard_channel(t, shard);
+            counts.merge(row_channels[i], 1, Integer::sum);
+        }
+        if (counts.size() <= 1)
+            return List.of(new Route(counts.isEmpty() ? channel : row_channels[0], rows, null));
+
+        LinkedHashMap<SnowpipeRestChannel, Route> routes = new LinkedHashMap<SnowpipeRestChannel, Route>();
+        counts.forEach((c, n) -> routes.put(c, new Route(c, new ArrayList<Map<String,Object>>(n), new int[n])));
+        for (int i = 0; i < rows.size(); i++) {
+            Route r = routes.get(row_channels[i]);
+            r.idx[r.rows.size()] = i;
+            r.rows.add(rows.get(i));
+        }
+        return new ArrayList<Route>(routes.values());
+    }
+
+    // Insert the rows of each route into its channel. The response covers
+    // all num_rows rows, with the row indexes of the request.
+    private InsertValidationResponse submit_routes(List<Route> routes, int num_rows, long bytes) {
+        if (1 == routes.size()) {
+            Route r = routes.get(0);
+            SnowpipeRestChannel.InsertResult result = r.channel.submitRows(r.rows, bytes, wal_enable);
+            r.token = result.token;
+            return result.response;
+        }
+        List<InsertValidationResponse.InsertError> errors = new ArrayList<InsertValidationResponse.InsertError>();
+        for (Route r : routes) {
+            SnowpipeRestChannel.InsertResult result = r.channel.submitRows(r.rows, bytes * r.rows.size() / num_rows, wal_enable);
+            r.token = result.token;
+            for (InsertValidationResponse.InsertError insertError : result.response.getInsertErrors()) {
+                insertError.setRowIndex(r.idx[(int)insertError.getRowIndex()]);
+                errors.add(insertError);
+            }
+        }
+        InsertValidationResponse resp = new InsertValidationResponse();
+        errors.sort(Comparator.comparingLong(InsertValidationResponse.InsertError::getRowIndex));
+        errors.forEach(resp::addError);
+        return resp;
+    }
+
+    // Idempotency-Keys are checked before the table is opened
+    private static void check_key(String idempotency_key) {
+        if (null != idempotency_key)
+            SnowpipeRestIdempotency.check_key(idempotency_key);
+    }
+
+    // A new entry for the request in the table's Idempotency-Key cache, or
+    // null if it has no key or the cache is disabled
+    private static SnowpipeRestIdempotency.Entry key_entry(SnowpipeRestTable t, String idempotency_key) {
+        if ((null == idempotency_key) || (null == t.getIdempotency()))
+            return null;
+        return new SnowpipeRestIdempotency.Entry(idempotency_key, System.currentTimeMillis());
+    }
+
+    // The response of the earlier request with the same key, once it is
+    // done; if it failed, the retry fails the same way
+    private SnowpipeInsertResponse retry_response(SnowpipeRestIdempotency.Entry prior) {
+        metrics.record_idempotent_hit();
+        try {
+            return prior.response.join().copy();
+        }
+        catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException)e.getCause();
+            throw e;
+        }
+    }
+
+    // The offset token of each route's rows, by channel
+    private static Map<SnowpipeRestChannel, String> route_tokens(List<Route> routes) {
+        Map<SnowpipeRestChannel, String> tokens = new LinkedHashMap<SnowpipeRestChannel, String>();
+        routes.forEach(r -> tokens.put(r.channel, r.token));
+        return tokens;
+    }
+
+    // sp_resp, once the rows up to each channel's token are committed
+    private CompletableFuture<SnowpipeInsertResponse> when_committed(Map<SnowpipeRestChannel, String> tokens, SnowpipeInsertResponse sp_resp) {
+        SnowpipeRestEvents.CommitWait event = new SnowpipeRestEvents.CommitWait();
+        event.begin();
+        return CompletableFuture.allOf(tokens.entrySet().stream().map(e -> e.getKey().whenCommitted(e.getValue())).toArray(CompletableFuture[]::new))
+            .orTimeout(ack_timeout_millis, TimeUnit.MILLISECONDS)
+            .handle((v, e) -> {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.tokens = String.join(",", tokens.values());
+                    event.timed_out = (null != e);
+                    event.commit();
+                }
+                if (null != e)
+                    throw new SnowpipeRestCommitTimeoutException(String.format("Rows not committed after %d ms", ack_timeout_millis));
+                return sp_resp;
+            });
+    }
+
+    private void admit(SnowpipeRestBatch batch) {
+        try {
+            admission.admit(batch.size(), batch.getBytes());
+        }
+        catch (SnowpipeRestOverloadedException e) {
+            metrics.record_rejected();
+            throw e;
+        }
+    }
+
+    private void check_admission() {
+        try {
+            admission.check();
+        }
+        catch (SnowpipeRestOverloadedException e) {
+            metrics.record_rejected();
+            throw e;
+        }
+    }
+
+    private SnowpipeRestBatch parse(byte[] body, String content_type, SnowpipeRestColumns columns) {
+        long start = System.nanoTime();
+        JsonFactory binary_factory = SnowpipeRestFormat.binary_factory(content_type);
+        SnowpipeRestEvents.Parse event = new SnowpipeRestEvents.Parse(SnowpipeRestFormat.name(binary_factory));
+        event.begin();
+        SnowpipeRestBatch batch = SnowpipeRestBatch.parse(objectMapper, body, columns, binary_factory);
+        SnowpipeRestMetrics.record(metrics.parse_timer, start);
+        event.done(batch.size(), batch.getBytes(), System.nanoTime() - start);
+        return batch;
+    }
+
+    private SnowpipeInsertResponse make_response(SnowpipeRestBatch batch, InsertValidationResponse resp) {
+        metrics.record_insert(batch.size(), batch.getBytes(), resp.getErrorRowCount());
+
+        // Make response
+        long start = System.nanoTime();
+        SnowpipeRestEvents.Response event = new SnowpipeRestEvents.Response();
+        event.begin();
+        SnowpipeInsertResponse sp_resp = new SnowpipeInsertResponse(batch.size(), batch.size() - resp.getErrorRowCount(), resp.getErrorRowCount());
+        for (InsertValidationResponse.InsertError insertError : resp.getInsertErrors()) {
+            int idx = (int)insertError.getRowIndex();
+            sp_resp.addError(new SnowpipeInsertError(idx, batch, insertError.getMessage()));
+        }
+        SnowpipeRestMetrics.record(metrics.response_timer, start);
+        event.end();
+        if (event.shouldCommit()) {
+            event.rows = batch.size();
+            event.error_rows = resp.getErrorRowCount();
+            event.commit();
         }
+        return sp_resp;
     }
 }
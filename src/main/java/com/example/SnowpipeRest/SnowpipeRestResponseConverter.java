@@ -0,0 +1,41 @@
+package com.example.SnowpipeRest;
+
+import java.io.IOException;
+
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.stereotype.Component;
+
+// Writes a SnowpipeInsertResponse straight to the response stream with a
+// JsonGenerator, without building the body as a String first. Spring Boot
+// puts converter beans ahead of its own, so this is used rather than the
+// Jackson converter.
+@Component
+public class SnowpipeRestResponseConverter extends AbstractHttpMessageConverter<SnowpipeInsertResponse> {
+    public SnowpipeRestResponseConverter() {
+        super(MediaType.APPLICATION_JSON, MediaType.TEXT_PLAIN);
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        return SnowpipeInsertResponse.class.isAssignableFrom(clazz);
+    }
+
+    @Override
+    protected boolean canRead(MediaType mediaType) {
+        return false;
+    }
+
+    @Override
+    protected SnowpipeInsertResponse readInternal(Class<? extends SnowpipeInsertResponse> clazz, HttpInputMessage inputMessage) {
+        throw new HttpMessageNotReadableException("Cannot read a SnowpipeInsertResponse", inputMessage);
+    }
+
+    @Override
+    protected void writeInternal(SnowpipeInsertResponse sp_resp, HttpOutputMessage outputMessage) throws IOException {
+        sp_resp.write(outputMessage.getBody());
+    }
+}
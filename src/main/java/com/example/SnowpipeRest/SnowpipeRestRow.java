@@ -0,0 +1,214 @@
+package com.example.SnowpipeRest;
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+// One row, as a read-only Map over an array of values, keyed by the ids of
+// the table's SnowpipeRestColumns. A row holds no column names and no map
+// entries of its own: rows that have the same columns in the same order
+// share the array of ids, so a row costs little more than its values.
+// Iterates in the order of the columns in the input, like a LinkedHashMap.
+public class SnowpipeRestRow extends AbstractMap<String,Object> {
+    // A row that may repeat a column is scanned for it up to this many
+    // columns, and looked up by id beyond
+    static final int SCAN_COLUMNS = 16;
+
+    private SnowpipeRestColumns columns;
+    // The column ids, in the row's order
+    private int[] layout;
+    private Object[] values;
+
+    private SnowpipeRestRow(SnowpipeRestColumns columns, int[] layout, Object[] values) {
+        this.columns = columns;
+        this.layout = layout;
+        this.values = values;
+    }
+
+    // Read the JSON object at (or next in) parser, leaving the parser on
+    // its end. Nested objects and arrays are read as for a Map, as
+    // LinkedHashMap and ArrayList. Once the table has MAX_COLUMNS columns,
+    // a row with a column that is not one of them is read as a LinkedHashMap.
+    static Map<String,Object> read(JsonParser parser, SnowpipeRestColumns columns, ObjectMapper objectMapper) throws IOException {
+        JsonToken token = parser.hasCurrentToken() ? parser.currentToken() : parser.nextToken();
+        if (JsonToken.START_OBJECT != token)
+            throw new JsonParseException(parser, "Expected a JSON object");
+
+        // Expect the columns of the last row: while they match, their ids
+        // are neither looked up nor copied. Read before the names, so that
+        // the names cover every id in it.
+        int[] ids = columns.last_layout();
+        String[] names = columns.names();
+        boolean own_ids = false;
+        Object[] values = new Object[Math.max(ids.length, 8)];
+        int n = 0;
+        boolean ascending = true;
+        // The position of each column so far, by id, once a row that may
+        // repeat columns is wider than SCAN_COLUMNS
+        Map<Integer,Integer> positions = null;
+        String name;
+        while (null != (name = parser.nextFieldName())) {
+            int id = ((n < ids.length) && (ids[n] < names.length) && name.equals(names[ids[n]]))
+                ? ids[n] : columns.id(name);
+            parser.nextToken();
+            Object value = read_value(parser, objectMapper);
+            if (id < 0)
+                return read_map(parser, objectMapper, columns, ids, values, n, name, value);
+
+            // A repeated column replaces the value, as in a Map. Neither a
+            // row that follows the last layout, which has no repeats, nor
+            // one whose ids ascend can have one; otherwise the column is
+            // found by a scan of a narrow row, or by id in a wide one
+            boolean follows = !own_ids && (n < ids.length) && (ids[n] == id);
+            ascending = ascending && ((n == 0) || (id > ids[n - 1]));
+            if (!follows && !ascending) {
+                if ((null == positions) && (n > SCAN_COLUMNS))
+                    positions = positions(ids, n);
+                int i = (null != positions) ? positions.getOrDefault(id, -1) : index_of(ids, n, id);
+                if (i >= 0) {
+                    values[i] = value;
+                    continue;
+                }
+            }
+            if (null != positions)
+                positions.put(id, n);
+            if (!own_ids && ((n >= ids.length) || (ids[n] != id))) {
+                ids = Arrays.copyOf(ids, Math.max(2 * ids.length, 8));
+                own_ids = true;
+            }
+            if (n == ids.length)
+                ids = Arrays.copyOf(ids, 2 * ids.length);
+            if (n == values.length)
+                values = Arrays.copyOf(values, 2 * values.length);
+            ids[n] = id;
+            values[n++] = value;
+        }
+        int[] layout = (!own_ids && (n == ids.length)) ? ids : columns.layout(ids, n);
+        return new SnowpipeRestRow(columns, layout, (n == values.length) ? values : Arrays.copyOf(values, n));
+    }
+
+    private static Object read_value(JsonParser parser, ObjectMapper objectMapper) throws IOException {
+        switch (parser.currentToken()) {
+            case VALUE_STRING:
+                return parser.getText();
+            case VALUE_NUMBER_INT:
+            case VALUE_NUMBER_FLOAT:
+                return parser.getNumberValue();
+            case VALUE_TRUE:
+                return Boolean.TRUE;
+            case VALUE_FALSE:
+                return Boolean.FALSE;
+            case VALUE_NULL:
+                return null;
+            default:
+                return objectMapper.readValue(parser, Object.class);
+        }
+    }
+
+    // The rest of a row with a column beyond MAX_COLUMNS
+    private static Map<String,Object> read_map(JsonParser parser, ObjectMapper objectMapper, SnowpipeRestColumns columns,
+                                               int[] ids, Object[] values, int n, String name, Object value) throws IOException {
+        Map<String,Object> row = new LinkedHashMap<String,Object>();
+        for (int i = 0; i < n; i++)
+            row.put(columns.name(ids[i]), values[i]);
+        row.put(name, value);
+        while (null != (name = parser.nextFieldName())) {
+            parser.nextToken();
+            row.put(name, read_value(parser, objectMapper));
+        }
+        return row;
+    }
+
+    // The position of each of ids[0, n), by id
+    private static Map<Integer,Integer> positions(int[] ids, int n) {
+        Map<Integer,Integer> positions = new HashMap<Integer,Integer>(2 * n);
+        for (int i = 0; i < n; i++)
+            positions.put(ids[i], i);
+        return positions;
+    }
+
+    private static int index_of(int[] ids, int n, int id) {
+        for (int i = 0; i < n; i++)
+            if (ids[i] == id)
+                return i;
+        return -1;
+    }
+
+    private int index_of(Object key) {
+        if (null == key)
+            return -1;
+        int id = columns.lookup(key);
+        if (id < 0)
+            return -1;
+        // Rows of a table learned in their own order have column i at i
+        if ((id < layout.length) && (layout[id] == id))
+            return id;
+        return index_of(layout, layout.length, id);
+    }
+
+    @Override
+    public int size() {
+        return layout.length;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return index_of(key) >= 0;
+    }
+
+    @Override
+    public Object get(Object key) {
+        int i = index_of(key);
+        return (i < 0) ? null : values[i];
+    }
+
+    @Override
+    public void forEach(BiConsumer<? super String, ? super Object> action) {
+        for (int i = 0; i < layout.length; i++)
+            action.accept(columns.name(layout[i]), values[i]);
+    }
+
+    @Override
+    public Set<Map.Entry<String,Object>> entrySet() {
+        return new AbstractSet<Map.Entry<String,Object>>() {
+            @Override
+            public int size() {
+                return layout.length;
+            }
+
+            @Override
+            public Iterator<Map.Entry<String,Object>> iterator() {
+                return new Iterator<Map.Entry<String,Object>>() {
+                    private int i = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return i < layout.length;
+                    }
+
+                    @Override
+                    public Map.Entry<String,Object> next() {
+                        if (i >= layout.length)
+                            throw new NoSuchElementException();
+                        Map.Entry<String,Object> e = new AbstractMap.SimpleImmutableEntry<String,Object>(columns.name(layout[i]), values[i]);
+                        i++;
+                        return e;
+                    }
+                };
+            }
+        };
+    }
+}
@@ -0,0 +1,156 @@
+package com.example.SnowpipeRest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Splits every table into a fixed number of shards (snowpiperest.shards), so
+// that several instances can ingest into the same table. Shard N always has
+// the same channel name and WAL subdirectory, whichever instance owns it, so
+// an instance that takes over a shard replays the shard's WAL and carries
+// on from the shard's committed offset token.
+//
+// An instance owns the shards it holds the lock file of, under
+// shards/shard_N.lock in snowpiperest.wal.dir. The locks are claimed at
+// startup and released on shutdown, or by the OS if the instance dies.
+public class SnowpipeRestSharding {
+    Logger logger = LoggerFactory.getLogger(SnowpipeRestSharding.class);
+
+    private int num_shards;
+    private String key_field;
+    private File lock_dir;
+
+    // The shards this instance owns, and their locks. Guarded by this.
+    private TreeMap<Integer, FileChannel> claimed = new TreeMap<Integer, FileChannel>();
+
+    public SnowpipeRestSharding(int num_shards, String key_field, String wal_dir) {
+        if (num_shards < 1)
+            throw new RuntimeException("Must specify at least 1 shard");
+        this.num_shards = num_shards;
+        this.key_field = ((null == key_field) || key_field.isEmpty()) ? null : key_field;
+        this.lock_dir = new File(wal_dir, "shards");
+    }
+
+    // The row field to route on, or null to route whole requests
+    String get_key_field() {
+        return key_field;
+    }
+
+    // The shard of a partition key: the CRC-32 of its UTF-8 bytes, modulo
+    // the number of shards, so that clients can compute it too
+    int shard_of(String key) {
+        CRC32 crc = new CRC32();
+        crc.update(key.getBytes(StandardCharsets.UTF_8));
+        return (int)(crc.getValue() % num_shards);
+    }
+
+    // The shard of a row, from its key field, or -1 if it has none
+    int shard_of(Map<String,Object> row) {
+        Object key = row.get(key_field);
+        return (null == key) ? -1 : shard_of(key.toString());
+    }
+
+    // Claim the shards given by spec: "auto" for every shard no other
+    // instance holds, up to max_claimed (0 for no limit), or a list of
+    // shards and ranges such as "0-3,6", which must all be free
+    synchronized int[] claim(String spec, int max_claimed) {
+        if (!lock_dir.isDirectory() && !lock_dir.mkdirs())
+            throw new RuntimeException(String.format("Unable to create shard lock directory %s", lock_dir));
+        boolean auto = "auto".equalsIgnoreCase(spec.trim());
+        for (int shard : auto ? all_shards() : parse_shards(spec)) {
+            if (auto && (max_claimed > 0) && (claimed.size() >= max_claimed))
+                break;
+            FileChannel lock = try_lock(shard);
+            if (null != lock)
+                claimed.put(shard, lock);
+            else if (!auto) {
+                release();
+                throw new RuntimeException(String.format("Shard %d is owned by another instance", shard));
+            }
+        }
+        if (claimed.isEmpty())
+            throw new RuntimeException(String.format("No free shards to claim (%s)", spec));
+        logger.info(String.format("Claimed shards %s of %d", claimed.keySet(), num_shards));
+        return get_claimed();
+    }
+
+    synchronized int[] get_claimed() {
+        return claimed.keySet().stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    // Let other instances claim this instance's shards
+    synchronized void release() {
+        for (Map.Entry<Integer, FileChannel> e : claimed.entrySet()) {
+            try {
+                e.getValue().close();
+            }
+            catch (IOException ioe) {
+                logger.warn(String.format("release: error unlocking shard %d", e.getKey()), ioe);
+            }
+        }
+        if (!claimed.isEmpty())
+            logger.info(String.format("Released shards %s", claimed.keySet()));
+        claimed.clear();
+    }
+
+    // The open lock file of the shard if it was free, else null
+    private FileChannel try_lock(int shard) {
+        FileChannel channel = null;
+        try {
+            channel = new RandomAccessFile(new File(lock_dir, String.format("shard_%d.lock", shard)), "rw").getChannel();
+            FileLock lock = channel.tryLock();
+            if (null != lock)
+                return channel;
+        }
+        catch (OverlappingFileLockException ofle) {
+            // Held by this JVM already
+        }
+        catch (IOException ioe) {
+            throw new RuntimeException(String.format("Unable to lock shard %d", shard), ioe);
+        }
+        try {
+            channel.close();
+        }
+        catch (IOException ioe) {
+            // Not locked, nothing to release
+        }
+        return null;
+    }
+
+    private TreeSet<Integer> all_shards() {
+        TreeSet<Integer> shards = new TreeSet<Integer>();
+        for (int i = 0; i < num_shards; i++)
+            shards.add(i);
+        return shards;
+    }
+
+    private TreeSet<Integer> parse_shards(String spec) {
+        TreeSet<Integer> shards = new TreeSet<Integer>();
+        try {
+            for (String part : spec.split(",")) {
+                String[] range = part.trim().split("-", 2);
+                int first = Integer.parseInt(range[0].trim());
+                int last = (range.length > 1) ? Integer.parseInt(range[1].trim()) : first;
+                if ((first < 0) || (last >= num_shards) || (first > last))
+                    throw new NumberFormatException(part);
+                for (int i = first; i <= last; i++)
+                    shards.add(i);
+            }
+        }
+        catch (NumberFormatException nfe) {
+            throw new RuntimeException(String.format("Invalid shards to claim: %s (there are %d shards)", spec, num_shards));
+        }
+        return shards;
+    }
+}
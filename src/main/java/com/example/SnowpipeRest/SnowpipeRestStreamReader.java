@@ -0,0 +1,91 @@
+package com.example.SnowpipeRest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+// Reads the rows of a request body straight from the request stream, a
+// batch at a time, so a body of any size is never held in memory whole.
+// The body is either newline-delimited JSON objects or one JSON array of
+// objects.
+public class SnowpipeRestStreamReader {
+    private ObjectMapper objectMapper;
+    private SnowpipeRestColumns columns;
+    private JsonParser parser;
+
+    private boolean started = false;
+    private boolean in_array = false;
+    private boolean done = false;
+    private int rows_read = 0;
+    private long batch_bytes = 0;
+    // A parse error is reported after the rows before it have been returned
+    private SnowpipeRestJsonParseException parse_error = null;
+
+    public SnowpipeRestStreamReader(ObjectMapper objectMapper, InputStream body, SnowpipeRestColumns columns) {
+        this.objectMapper = objectMapper;
+        this.columns = columns;
+        try {
+            this.parser = objectMapper.getFactory().createParser(body);
+        }
+        catch (IOException ioe) {
+            throw new SnowpipeRestJsonParseException("Unable to read body.");
+        }
+    }
+
+    // The next rows, about max_bytes of them, or no rows at the end of the body
+    List<Map<String,Object>> next_batch(long max_bytes) {
+        if (null != parse_error)
+            throw parse_error;
+        List<Map<String,Object>> rows = new ArrayList<Map<String,Object>>();
+        batch_bytes = 0;
+        try {
+            while (!done && (batch_bytes < max_bytes)) {
+                if (!next_row()) {
+                    done = true;
+                    break;
+                }
+                long start = parser.getTokenLocation().getByteOffset();
+                rows.add(SnowpipeRestRow.read(parser, columns, objectMapper));
+                batch_bytes += parser.getCurrentLocation().getByteOffset() - start;
+            }
+        }
+        catch (IOException ioe) {
+            done = true;
+            parse_error = new SnowpipeRestJsonParseException(String.format(
+                "Unable to parse body as JSON objects at row %d; the rows before it were inserted.", rows_read + rows.size()));
+            if (rows.isEmpty())
+                throw parse_error;
+        }
+        rows_read += rows.size();
+        return rows;
+    }
+
+    // Bytes of input in the last batch
+    long get_batch_bytes() {
+        return batch_bytes;
+    }
+
+    // Move to the start of the next row; false at the end of the rows
+    private boolean next_row() throws IOException {
+        JsonToken token = parser.nextToken();
+        if (!started) {
+            started = true;
+            if (JsonToken.START_ARRAY == token) {
+                in_array = true;
+                token = parser.nextToken();
+            }
+        }
+        if (JsonToken.START_OBJECT == token)
+            return true;
+        // Must be the end of the body, after the end of the array if there is one
+        if (in_array ? ((JsonToken.END_ARRAY != token) || (null != parser.nextToken())) : (null != token))
+            throw new IOException("Expected a JSON object");
+        return false;
+    }
+}
@@ -0,0 +1,95 @@
+package com.example.SnowpipeRest;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// The pool of channels open on one table. Requests acquire the table for
+// as long as they use its channels, so that a table evicted from the
+// repository's cache is only closed once the requests on it are done.
+public class SnowpipeRestTable {
+    Logger logger = LoggerFactory.getLogger(SnowpipeRestTable.class);
+
+    private String name;
+    private List<SnowpipeRestChannel> channels;
+    private AtomicInteger next_channel = new AtomicInteger(0);
+    // With sharding, the channel of each shard this instance owns
+    private Map<Integer, SnowpipeRestChannel> shard_channels = new HashMap<Integer, SnowpipeRestChannel>();
+    // The Idempotency-Keys of the table's recent requests; null if disabled
+    private SnowpipeRestIdempotency idempotency;
+
+    // Guarded by this
+    private int in_use = 0;
+    private boolean closed = false;
+
+    public SnowpipeRestTable(String name, List<SnowpipeRestChannel> channels, SnowpipeRestIdempotency idempotency) {
+        this.name = name;
+        this.channels = channels;
+        this.idempotency = idempotency;
+    }
+
+    // One channel per shard, for the shards in the same order
+    public SnowpipeRestTable(String name, List<SnowpipeRestChannel> channels, int[] shards, SnowpipeRestIdempotency idempotency) {
+        this(name, channels, idempotency);
+        for (int i = 0; i < shards.length; i++)
+            shard_channels.put(shards[i], channels.get(i));
+    }
+
+    String getName() {
+        return name;
+    }
+
+    List<SnowpipeRestChannel> getChannels() {
+        return channels;
+    }
+
+    SnowpipeRestIdempotency getIdempotency() {
+        return idempotency;
+    }
+
+    // Stripe requests across the pool in round-robin order
+    SnowpipeRestChannel nextChannel() {
+        return channels.get(Math.floorMod(next_channel.getAndIncrement(), channels.size()));
+    }
+
+    // The channel of a shard, or null if this instance does not own it
+    SnowpipeRestChannel shardChannel(int shard) {
+        return shard_channels.get(shard);
+    }
+
+    // Returns false if the table has been closed; the caller must then
+    // open it again
+    synchronized boolean acquire() {
+        if (closed)
+            return false;
+        in_use++;
+        return true;
+    }
+
+    synchronized void release() {
+        in_use--;
+        if (0 == in_use)
+            notifyAll();
+    }
+
+    // Wait for the requests using the table, then close its channels
+    void close() {
+        synchronized (this) {
+            closed = true;
+            try {
+                while (in_use > 0)
+                    wait();
+            }
+            catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        channels.forEach(SnowpipeRestChannel::close);
+        logger.info(String.format("Closed table %s", name));
+    }
+}
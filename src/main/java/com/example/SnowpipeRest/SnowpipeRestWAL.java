@@ -1,15 +1,28 @@
 package com.example.SnowpipeRest;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -18,64 +31,188 @@ import org.slf4j.LoggerFactory;
 // import org.springframework.beans.factory.annotation.Value;
 // import org.springframework.stereotype.Component;
 
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import io.micrometer.core.instrument.Meter;
+import net.snowflake.ingest.streaming.InsertValidationResponse;
+
 // @Component
 public class SnowpipeRestWAL {
     Logger logger = LoggerFactory.getLogger(SnowpipeRestWAL.class);
 
-    private SnowpipeRestRepository repo;
+    private SnowpipeRestChannel channel;
     private ObjectMapper objectMapper = new ObjectMapper();
+    private SnowpipeRestMetrics metrics;
+    private List<Meter> gauges;
+
+    // Values of snowpiperest.wal.flush
+    static final int WAL_FLUSH_NONE = 0;
+    static final int WAL_FLUSH_WRITE = 1;
+    static final int WAL_FLUSH_GROUP_COMMIT = 2;
 
     private String wal_dir;
     private int wal_flush;
-
-    private BufferedWriter wal_writer = null;
+    private int segment_bytes;
+    private long group_commit_bytes;
+    private long group_commit_micros;
+    private long commit_poll_millis;
+
+    // Rows are logged in compressed blocks of about BLOCK_BYTES, one
+    // block record per write (or more for a big one), unless compression
+    // is none (SnowpipeRestWALCodec.NONE)
+    private static final int BLOCK_BYTES = 1 << 20;
+    private int compression;
+    private SnowpipeRestWALCodec codec = null;
+    private byte[] compressed = new byte[0];
+
+    // Idempotency-Key records are logged with their own buffers, as a new
+    // file (started while appending rows) begins with them
+    private SnowpipeRestIdempotency idempotency;
+    private RowBuffer key_buffer = new RowBuffer();
+    private byte[] key_compressed = new byte[0];
+
+    private SnowpipeRestWALSegment wal_segment = null;
+    private RowBuffer row_buffer = new RowBuffer();
     private String wal_prefix = "file_";
     private int wal_index = 0;
     private String wal_fname;
     private char token_separator = ':';
     private int cur_row = 0;
-    private int rows_per_file = 1000;
-    private int replay_chunk_size = 20;
+    private long replay_batch_bytes;
+    private int replay_read_ahead = 2;
+    private int background_replay;
+
+    // Indexes of the WAL files on disk, in order. Loaded once at startup
+    // and then maintained on rotation and purge, so the request path never
+    // lists the directory.
+    private ConcurrentSkipListSet<Integer> wal_segments = new ConcurrentSkipListSet<Integer>();
+
+    // Completes once the WAL files found at startup have been replayed
+    private CompletableFuture<Void> recovery = new CompletableFuture<Void>();
+    private volatile int replay_files_pending = 0;
+    private volatile long replayed_rows = 0;
+
+    // Latest committed offset token, as last seen by the tracker
+    private volatile String committed_token = null;
+    private ScheduledExecutorService tracker;
+
+    // For the backlog gauges: the appended row count at the start of each
+    // WAL file written since startup (guarded by this), and the time the
+    // tracker first saw each written position
+    private TreeMap<Integer, Long> segment_start_rows = new TreeMap<Integer, Long>();
+    private ConcurrentSkipListMap<Long, Long> write_samples = new ConcurrentSkipListMap<Long, Long>();
+    private Thread committer = null;
+
+    // Group commit state, all guarded by this.
+    // Rows and Idempotency-Key records are counted, apart, across all WAL
+    // files since startup.
+    private long appended_rows = 0;
+    private long durable_rows = 0;
+    private long appended_keys = 0;
+    private long durable_keys = 0;
+    private long pending_bytes = 0;
+    private IOException commit_error = null;
+
+    // Reusable serialization buffer, so appending a row allocates no String
+    private static class RowBuffer extends ByteArrayOutputStream {
+        byte[] array() {
+            return buf;
+        }
+    }
 
-    public SnowpipeRestWAL(SnowpipeRestRepository repo, String wal_dir, int wal_flush) {
-        this.repo = repo;
+    public SnowpipeRestWAL(SnowpipeRestChannel channel, String wal_dir, SnowpipeRestWALConfig config, SnowpipeRestMetrics metrics) {
+        this(channel, wal_dir, config, metrics, null);
+    }
+
+    // Restores the Idempotency-Keys logged to this WAL into idempotency (if not null)
+    public SnowpipeRestWAL(SnowpipeRestChannel channel, String wal_dir, SnowpipeRestWALConfig config, SnowpipeRestMetrics metrics,
+                           SnowpipeRestIdempotency idempotency) {
+        this.channel = channel;
+        this.idempotency = idempotency;
+        this.metrics = metrics;
         this.wal_dir = wal_dir;
-        this.wal_flush = wal_flush;
+        this.wal_flush = config.wal_flush;
+        this.segment_bytes = config.segment_bytes;
+        this.group_commit_bytes = config.group_commit_bytes;
+        this.group_commit_micros = config.group_commit_micros;
+        this.commit_poll_millis = config.commit_poll_millis;
+        this.replay_batch_bytes = config.replay_batch_bytes;
+        this.background_replay = config.background_replay;
+        this.compression = config.compression;
+        if (SnowpipeRestWALCodec.NONE != compression)
+            this.codec = new SnowpipeRestWALCodec(compression);
         try {
             File wdir = new File(this.wal_dir);
             wdir.mkdirs();
-            replay_if_needed();
-            next_wal_writer();
+            load_wal_segments();
+
+            // Work out what to replay before opening the fresh WAL file
+            String last_offset = channel.getLatestCommittedOffsetToken();
+            List<String> replay_fnames = files_to_replay(last_offset);
+            int replay_offset = (replay_fnames.isEmpty() || (null == last_offset) || last_offset.isEmpty())
+                ? 0 : token_to_row(last_offset) + 1;
+
+            if (0 == background_replay) {
+                replay(replay_fnames, replay_offset);
+                recovery.complete(null);
+                next_wal_writer(0);
+            }
+            else {
+                // New requests go to the fresh WAL file while the old
+                // files are replayed in the background
+                next_wal_writer(0);
+                Thread replayer = new Thread(() -> {
+                    try {
+                        replay(replay_fnames, replay_offset);
+                        checkpoint_restored_keys();
+                        recovery.complete(null);
+                    }
+                    catch (Exception e) {
+                        logger.error(String.format("Error during WAL replay of %s", wal_dir), e);
+                        recovery.completeExceptionally(e);
+                    }
+                }, "wal-recovery-" + wal_dir);
+                replayer.setDaemon(true);
+                replayer.start();
+            }
         }
         catch (Exception e) {
-            e.printStackTrace();
-            throw new RuntimeException("Error during WAL replay");
+            logger.error(String.format("Error during WAL replay of %s", wal_dir), e);
+            throw new RuntimeException("Error during WAL replay", e);
         }
-    }
 
+        if (WAL_FLUSH_GROUP_COMMIT == wal_flush) {
+            committer = new Thread(this::group_commit_loop, "wal-commit-" + wal_dir);
+            committer.setDaemon(true);
+            committer.start();
+        }
 
-    private void wait_for_flush() {
-        // If no current WAL, nothing to flush
-        if (null == wal_fname)
-            return;
+        tracker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "wal-tracker-" + wal_dir);
+            t.setDaemon(true);
+            return t;
+        });
+        tracker.scheduleWithFixedDelay(this::track_committed_offset, commit_poll_millis, commit_poll_millis, TimeUnit.MILLISECONDS);
+        gauges = metrics.register_wal(this, channel.getFullyQualifiedName());
+    }
 
+
+    private void wait_for_flush(String token) {
         int maxRetries = 20;
         int retryCount = 0;
-        String token = makeToken(wal_fname, cur_row);
 
         do {
-            String offsetTokenFromSnowflake = repo.getLatestCommittedOffsetToken();
+            String offsetTokenFromSnowflake = channel.getLatestCommittedOffsetToken();
             if (offsetTokenFromSnowflake != null
                     && offsetTokenFromSnowflake.equals(token)) {
-                System.out.println("SUCCESSFULLY inserted");
+                logger.info(String.format("wait_for_flush: replayed rows committed up to %s", token));
                 break;
             } else {
                 try {
                     Thread.sleep(1000);
                 } catch (Exception e) {
-                    e.printStackTrace();
+                    logger.warn(String.format("wait_for_flush: error waiting for %s", token), e);
                 }
             }
             retryCount++;
@@ -95,119 +232,561 @@ public class SnowpipeRestWAL {
         return Integer.parseInt(row_str);
     }
 
-    private int max_wal_index() {
+    // Only consider WAL files; the directory may also hold the WAL
+    // subdirectories of other channels in the pool.
+    private Stream<String> wal_file_names() {
         return Stream.of(new File(wal_dir).listFiles())
-            .map(f -> f.getName().substring(wal_prefix.length() + 1))
-            .map(s -> Integer.parseInt(s))
-            .max(Integer::compare)
-            .orElse(-1);
-    }
-
-    private void next_wal_writer() throws IOException {
-        if (null != wal_writer)
-            wal_writer.close();
-        wal_index = max_wal_index() + 1;
-        wal_fname = wal_prefix.concat(String.format("%010d", wal_index));
-        wal_writer = new BufferedWriter(new FileWriter(new File(wal_dir, wal_fname)));
+            .filter(File::isFile)
+            .map(File::getName)
+            .filter(f -> f.startsWith(wal_prefix));
+    }
+
+    private int fname_to_index(String fname) {
+        return Integer.parseInt(fname.substring(wal_prefix.length()));
+    }
+
+    private String index_to_fname(int idx) {
+        return wal_prefix.concat(String.format("%010d", idx));
+    }
+
+    private void load_wal_segments() {
+        wal_file_names()
+            .map(f -> fname_to_index(f))
+            .forEach(wal_segments::add);
+    }
+
+    private int max_wal_index() {
+        return wal_segments.isEmpty() ? -1 : wal_segments.last();
+    }
+
+    int get_wal_segment_count() {
+        return wal_segments.size();
+    }
+
+    String get_committed_token() {
+        return committed_token;
+    }
+
+    // Age of the oldest written row not yet committed, to within commit_poll_millis
+    double get_commit_lag_seconds() {
+        String token = committed_token;
+        long committed = ((null == token) || (token.indexOf(token_separator) < 0)) ? -1 : SnowpipeRestOffsetWatcher.token_position(token);
+        Map.Entry<Long, Long> oldest = write_samples.higherEntry(committed);
+        return (null == oldest) ? 0 : (System.nanoTime() - oldest.getValue()) / 1e9;
+    }
+
+    // Rows appended since startup that the committed offset token does not cover yet
+    synchronized long get_uncommitted_rows() {
+        String token = committed_token;
+        if ((null == token) || (token.indexOf(token_separator) < 0))
+            return appended_rows;
+        Long start = segment_start_rows.get(fname_to_index(token_to_fname(token)));
+        if (null == start)
+            // Committed up to a file from before startup
+            return appended_rows;
+        return Math.max(0, appended_rows - (start + token_to_row(token) + 1));
+    }
+
+    // Roll over to a new segment: its checkpoint of the live keys, then room
+    // for segment_bytes of records, and at least one of record_bytes
+    private void next_wal_writer(int record_bytes) throws IOException {
+        SnowpipeRestEvents.WALRotate event = new SnowpipeRestEvents.WALRotate();
+        event.begin();
+        if ((null != wal_segment) && (WAL_FLUSH_GROUP_COMMIT == wal_flush)) {
+            // The group committer only ever syncs the current segment,
+            // so make everything in the old one durable before moving on
+            wal_segment.force();
+            pending_bytes = 0;
+            mark_durable(appended_rows, appended_keys);
+        }
+        List<byte[]> keys = (null == idempotency) ? List.of() : idempotency.records(channel);
+        long key_bytes = 0;
+        for (byte[] record : keys)
+            key_bytes += key_record_bytes(record.length);
+        int file_bytes = Math.toIntExact(key_bytes + Math.max(segment_bytes, SnowpipeRestWALSegment.size_for(record_bytes)));
+        // Keep writing to the current file if the new one cannot be created
+        int index = max_wal_index() + 1;
+        String fname = index_to_fname(index);
+        SnowpipeRestWALSegment segment = SnowpipeRestWALSegment.create(new File(wal_dir, fname), file_bytes, compression);
+        wal_index = index;
+        wal_fname = fname;
+        wal_segment = segment;
+        wal_segments.add(wal_index);
+        segment_start_rows.put(wal_index, appended_rows);
         cur_row = 0;
-        purge_old_log_files();
+        checkpoint_keys(keys);
+        event.end();
+        if (event.shouldCommit()) {
+            event.wal_dir = wal_dir;
+            event.file = wal_fname;
+            event.file_bytes = file_bytes;
+            event.commit();
+        }
+    }
+
+    // Start each file with the live keys logged to this WAL, so that none
+    // is lost when the older files are purged. The file is sized for them.
+    private void checkpoint_keys(List<byte[]> keys) throws IOException {
+        for (byte[] record : keys) {
+            if (!append_key_record(record))
+                throw new IOException(String.format("Idempotency-Keys do not fit in %s", wal_fname));
+        }
+    }
+
+    // The most bytes a key record of record_length takes in a file
+    private int key_record_bytes(int record_length) {
+        if (null == codec)
+            return SnowpipeRestWALSegment.RECORD_HEADER_BYTES + record_length;
+        return SnowpipeRestWALSegment.RECORD_HEADER_BYTES + SnowpipeRestWALSegment.BLOCK_HEADER_BYTES
+            + codec.max_compressed_bytes(4 + record_length);
+    }
+
+    // The keys restored by a background replay were not yet known when the
+    // current file was started, so start another
+    private synchronized void checkpoint_restored_keys() throws IOException {
+        next_wal_writer(0);
+    }
+
+    // Log an Idempotency-Key record (see SnowpipeRestIdempotency), after
+    // the rows it covers. It is synced like rows, but does not count as one:
+    // in group commit mode it opens a commit window of its own if the
+    // committer is idle, and waits for it.
+    synchronized void write_key_record(byte[] record) {
+        try {
+            // A new file starts with the live keys, which include this one
+            if (!append_key_record(record))
+                next_wal_writer(0);
+            if (WAL_FLUSH_WRITE == wal_flush)
+                wal_segment.force();
+        }
+        catch (IOException ioe) {
+            logger.warn(String.format("write_key_record: error writing to %s", wal_fname), ioe);
+            return;
+        }
+        // Once closed, no committer is left to wait for
+        if (null == committer)
+            return;
+        boolean wake_committer = committer_idle();
+        long keys = ++appended_keys;
+        if (wake_committer || (pending_bytes >= group_commit_bytes))
+            notifyAll();
+        try {
+            while ((durable_keys < keys) && (null == commit_error))
+                wait();
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        if (durable_keys < keys)
+            logger.warn(String.format("write_key_record: key record not synced to %s", wal_fname), commit_error);
+    }
+
+    // Returns false, and writes nothing, if the record does not fit in the
+    // current file. With compression, the record is a block of its own.
+    private boolean append_key_record(byte[] record) throws IOException {
+        if (null == codec) {
+            if (!wal_segment.append(record, record.length))
+                return false;
+            pending_bytes += SnowpipeRestWALSegment.RECORD_HEADER_BYTES + record.length;
+            return true;
+        }
+        key_buffer.reset();
+        for (int shift = 24; shift >= 0; shift -= 8)
+            key_buffer.write(record.length >>> shift);
+        key_buffer.write(record, 0, record.length);
+        int max_length = codec.max_compressed_bytes(key_buffer.size());
+        if (key_compressed.length < max_length)
+            key_compressed = new byte[max_length];
+        int length = codec.compress(key_buffer.array(), key_buffer.size(), key_compressed);
+        if (!wal_segment.append_block(key_buffer.size(), key_compressed, length))
+            return false;
+        pending_bytes += SnowpipeRestWALSegment.RECORD_HEADER_BYTES + SnowpipeRestWALSegment.BLOCK_HEADER_BYTES + length;
+        return true;
     }
 
     private List<String> get_wal_files(int wal_idx) {
-        return Stream.of(new File(wal_dir).listFiles())
-            .map(File::getName)
-            .filter(wf -> (Integer.parseInt(wf.substring(wal_prefix.length())) > wal_idx))
+        return wal_segments.tailSet(wal_idx, false).stream()
+            .map(idx -> index_to_fname(idx))
             .collect(Collectors.toList());
     }
 
-    private void replay_file(String fname, int offset) {
-        String line;
-        StringBuffer sb = new StringBuffer("[");
-        int idx = 0;
+    // A batch of decoded rows to re-insert, and the WAL token of its last row
+    private static class ReplayBatch {
+        List<Map<String,Object>> rows = new ArrayList<Map<String,Object>>();
+        long bytes = 0;
+        String token = null;
+    }
+
+    private static final ReplayBatch END_OF_REPLAY = new ReplayBatch();
+
+    // Replay pipeline: a decoder thread reads ahead through the WAL files
+    // and decodes records straight into insert rows, in batches of about
+    // replay_batch_bytes, while this thread inserts the previous batch.
+    // Each batch is inserted with the WAL token of its last row, so offset
+    // tokens keep increasing in WAL order.
+    private String replay_files(List<String> fnames, int offset) throws Exception {
+        SnowpipeRestEvents.WALReplay event = new SnowpipeRestEvents.WALReplay();
+        event.begin();
+        BlockingQueue<ReplayBatch> batches = new ArrayBlockingQueue<ReplayBatch>(replay_read_ahead);
+        ExecutorService decoder = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "wal-replay-" + wal_dir);
+            t.setDaemon(true);
+            return t;
+        });
+        Future<?> decoding = decoder.submit(() -> {
+            try {
+                decode_files(fnames, offset, batches);
+            }
+            finally {
+                batches.put(END_OF_REPLAY);
+            }
+            return null;
+        });
 
+        String last_token = null;
+        long num_rows = 0;
+        long num_errors = 0;
         try {
-            BufferedReader wal_reader = new BufferedReader(new FileReader(new File(wal_dir, fname)));
-            cur_row = 0;
-            for (int i = 0; i < offset; i++) {
-                wal_reader.readLine();
-                cur_row++;
-            }
-            // for rows in fname starting at row
-            while ((line = wal_reader.readLine()) != null) {
-                //   make chunks of rows and insert
-                sb.append((0 == idx) ? "" : ",").append(line);
-                idx++;
-                if (idx > replay_chunk_size) {
-                    // save rows
-                    sb.append("]");
-                    SnowpipeInsertResponse sir = repo.saveToSnowflake(sb.toString(), 0);
-                    logger.info(String.format("replay_file: %s", sir.toString()));
-
-                    // reset
-                    idx = 0;
-                    sb.setLength(1);
-                }
+            ReplayBatch batch;
+            while (END_OF_REPLAY != (batch = batches.take())) {
+                InsertValidationResponse resp = channel.replayRows(batch.rows, batch.token);
+                if (resp.hasErrors())
+                    logger.info(String.format("replay_files: %d of %d rows up to %s failed", resp.getErrorRowCount(), batch.rows.size(), batch.token));
+                num_rows += batch.rows.size();
+                num_errors += resp.getErrorRowCount();
+                last_token = batch.token;
+                replayed_rows = num_rows;
+                replay_files_pending = fnames.size() - fnames.indexOf(token_to_fname(last_token)) - 1;
             }
-            if (idx > 0) {
-                // save rows
-                sb.append("]");
-                SnowpipeInsertResponse sir = repo.saveToSnowflake(sb.toString(), 0);
-                logger.info(String.format("replay_file: %s", sir.toString()));        
+            // Surface any error from the decoder
+            decoding.get();
+        }
+        finally {
+            decoder.shutdownNow();
+        }
+        logger.info(String.format("replay_files: replayed %d rows (%d errors) up to %s", num_rows, num_errors, last_token));
+        event.end();
+        if (event.shouldCommit()) {
+            event.wal_dir = wal_dir;
+            event.files = fnames.size();
+            event.rows = num_rows;
+            event.error_rows = num_errors;
+            event.token = last_token;
+            event.commit();
+        }
+        return last_token;
+    }
 
-                // reset
-                idx = 0;
-                sb.setLength(1);            
+    private void decode_files(List<String> fnames, int offset, BlockingQueue<ReplayBatch> batches) throws Exception {
+        // Replayed rows share one dictionary of their columns
+        SnowpipeRestColumns columns = new SnowpipeRestColumns();
+        ReplayBatch batch = new ReplayBatch();
+        byte[] record = new byte[4096];
+
+        for (int i = 0; i < fnames.size(); i++) {
+            String fname = fnames.get(i);
+            File file = new File(wal_dir, fname);
+            // Skip the rows of the first file that are already committed
+            int skip = (0 == i) ? offset : 0;
+            int row;
+
+            if (SnowpipeRestWALSegment.is_segment(file)) {
+                SnowpipeRestWALSegment segment = SnowpipeRestWALSegment.open(file);
+                if (null != idempotency)
+                    segment.on_key_record(key_record -> idempotency.restore(channel, key_record));
+                row = segment.skip(skip);
+                ByteBuffer payload;
+                while ((payload = segment.next()) != null) {
+                    int length = payload.remaining();
+                    if (record.length < length)
+                        record = new byte[length];
+                    payload.get(record, 0, length);
+                    try (JsonParser parser = objectMapper.getFactory().createParser(record, 0, length)) {
+                        batch.rows.add(SnowpipeRestRow.read(parser, columns, objectMapper));
+                    }
+                    batch.bytes += length;
+                    batch.token = makeToken(fname, row++);
+                    if (batch.bytes >= replay_batch_bytes) {
+                        batches.put(batch);
+                        batch = new ReplayBatch();
+                    }
+                }
+                segment.close();
+            }
+            else {
+                // WAL files written before the binary segment format: one JSON row per line
+                try (BufferedReader wal_reader = new BufferedReader(new FileReader(file))) {
+                    String line;
+                    for (row = 0; (row < skip) && (null != wal_reader.readLine()); row++)
+                        ;
+                    while ((line = wal_reader.readLine()) != null) {
+                        try (JsonParser parser = objectMapper.getFactory().createParser(line)) {
+                            batch.rows.add(SnowpipeRestRow.read(parser, columns, objectMapper));
+                        }
+                        batch.bytes += line.length();
+                        batch.token = makeToken(fname, row++);
+                        if (batch.bytes >= replay_batch_bytes) {
+                            batches.put(batch);
+                            batch = new ReplayBatch();
+                        }
+                    }
+                }
             }
-            wal_reader.close();
         }
-        catch (IOException ioe) {
-            ioe.printStackTrace();
+        if (!batch.rows.isEmpty())
+            batches.put(batch);
+    }
+
+    // The partial file of the last committed offset, then all files "later" than it
+    private List<String> files_to_replay(String last_offset) {
+        List<String> wal_fnames = new ArrayList<String>();
+        if ((null == last_offset) || (0 == last_offset.length())) {
+            // Nothing committed yet: every file that is left holds rows
+            // that may not have reached Snowflake
+            wal_fnames.addAll(get_wal_files(-1));
+            logger.info(String.format("files_to_replay: no committed offset, %d files", wal_fnames.size()));
+            return wal_fnames;
         }
+        logger.info(String.format("files_to_replay: last_offset: '%s'", last_offset));
+        String fname = token_to_fname(last_offset);
+        int fname_idx = fname_to_index(fname);
+        if (wal_segments.contains(fname_idx))
+            wal_fnames.add(fname);
+        wal_fnames.addAll(get_wal_files(fname_idx));
+        return wal_fnames;
     }
 
-    private void replay_if_needed() {
-        // Get the last committed offset token
-        String last_offset = repo.getLatestCommittedOffsetToken();
-        if ((null == last_offset) || (0 == last_offset.length()))
-            // Nothing to do
+    private void replay(List<String> wal_fnames, int offset) throws Exception {
+        if (wal_fnames.isEmpty())
             return;
-        logger.info(String.format("replay_if_needed: last_offset: '%s'", last_offset));
-        String fname = token_to_fname(last_offset);
-        int row = token_to_row(last_offset) + 1;
+        logger.info(String.format("replay: replaying files: %s", wal_fnames));
+        replay_files_pending = wal_fnames.size();
+        String last_token = replay_files(wal_fnames, offset);
+
+        logger.info(String.format("Replayed %d files", wal_fnames.size()));
+
+        // Only block startup until the replayed rows are committed; in the
+        // background there is nothing to wait for
+        if ((null != last_token) && (0 == background_replay))
+            wait_for_flush(last_token);
+    }
 
-        // Replay partial file
-        replay_file(fname, row);
+    CompletableFuture<Void> get_recovery() {
+        return recovery;
+    }
 
-        // for all files "later" than fname
-        int fname_idx = Integer.parseInt(fname.substring(wal_prefix.length()));
-        List<String> wal_fnames = get_wal_files(fname_idx);
-        logger.info(String.format("replay_if_needed: replaying later files: %s", wal_fnames));
-        //   Replay full file
-        wal_fnames.stream().forEachOrdered(f -> replay_file(f, 0));
+    int get_replay_files_pending() {
+        return replay_files_pending;
+    }
 
-        logger.info(String.format("Replayed %d files", wal_fnames.size() + 1));
+    long get_replayed_rows() {
+        return replayed_rows;
+    }
 
-        wait_for_flush();
+    // Stop the background threads and make what was logged durable. The
+    // files stay on disk, to be replayed or purged by the next WAL opened
+    // on this directory.
+    synchronized void close() {
+        metrics.remove(gauges);
+        tracker.shutdownNow();
+        if (null != committer)
+            committer.interrupt();
+        committer = null;
+        if (null != wal_segment)
+            wal_segment.force();
+        mark_durable(appended_rows, appended_keys);
+        if (null != codec)
+            codec.close();
     }
 
-    String write_to_log(List<Map<String,Object>> rows) {
+    synchronized String write_to_log(List<Map<String,Object>> rows) {
         try {
-            for (Map<String,Object> row : rows) {
-                wal_writer.write(objectMapper.writeValueAsString(row));
-                wal_writer.newLine();
-                cur_row++;
-                if (cur_row >= rows_per_file)
-                    next_wal_writer();
+            long start = System.nanoTime();
+            SnowpipeRestEvents.WALAppend append_event = new SnowpipeRestEvents.WALAppend();
+            append_event.begin();
+            // Open a new commit window if the committer is idle
+            boolean wake_committer = committer_idle();
+            if (null != codec)
+                append_blocks(rows);
+            else {
+                for (Map<String,Object> row : rows) {
+                    row_buffer.reset();
+                    objectMapper.writeValue(row_buffer, row);
+                    if (!wal_segment.append(row_buffer.array(), row_buffer.size())) {
+                        next_wal_writer(row_buffer.size());
+                        if (!wal_segment.append(row_buffer.array(), row_buffer.size()))
+                            throw new IOException(String.format("Row does not fit in new WAL file %s", wal_fname));
+                    }
+                    appended_rows++;
+                    pending_bytes += SnowpipeRestWALSegment.RECORD_HEADER_BYTES + row_buffer.size();
+                    cur_row++;
+                }
+            }
+            SnowpipeRestMetrics.record(metrics.wal_append_timer, start);
+            append_event.end();
+            if (append_event.shouldCommit()) {
+                append_event.channel = channel.getFullyQualifiedName();
+                append_event.rows = rows.size();
+                append_event.token = makeToken(wal_fname, cur_row - 1);
+                append_event.commit();
             }
-            if (0 != wal_flush)
-                wal_writer.flush();
+            if (WAL_FLUSH_WRITE == wal_flush) {
+                start = System.nanoTime();
+                SnowpipeRestEvents.WALFlush flush_event = new SnowpipeRestEvents.WALFlush();
+                flush_event.begin();
+                wal_segment.force();
+                SnowpipeRestMetrics.record(metrics.wal_flush_timer, start);
+                flush_event.end();
+                if (flush_event.shouldCommit()) {
+                    flush_event.channel = channel.getFullyQualifiedName();
+                    flush_event.commit();
+                }
+            }
+            // ... or close the current one early once it is big enough
+            if ((WAL_FLUSH_GROUP_COMMIT == wal_flush) && (wake_committer || (pending_bytes >= group_commit_bytes)))
+                notifyAll();
         }
         catch (IOException ioe) {
-            // Error writing to WAL
+            // Fail the request rather than acknowledge rows that are not logged
+            logger.error(String.format("write_to_log: error writing to %s", wal_fname), ioe);
+            throw new RuntimeException("Error writing to WAL", ioe);
         }
         return makeToken(wal_fname, cur_row - 1);
     }
 
+    // Serialize the rows into blocks of [int length][row as JSON], and
+    // append each block compressed
+    private void append_blocks(List<Map<String,Object>> rows) throws IOException {
+        int block_rows = 0;
+        row_buffer.reset();
+        for (Map<String,Object> row : rows) {
+            int start = row_buffer.size();
+            row_buffer.write(ROW_LENGTH_PLACEHOLDER, 0, ROW_LENGTH_PLACEHOLDER.length);
+            objectMapper.writeValue(row_buffer, row);
+            int length = row_buffer.size() - start - ROW_LENGTH_PLACEHOLDER.length;
+            byte[] block = row_buffer.array();
+            for (int i = 0; i < 4; i++)
+                block[start + i] = (byte)(length >>> (24 - 8 * i));
+            block_rows++;
+            if (row_buffer.size() >= BLOCK_BYTES) {
+                append_block(block_rows);
+                block_rows = 0;
+                row_buffer.reset();
+            }
+        }
+        if (block_rows > 0)
+            append_block(block_rows);
+    }
+
+    private static final byte[] ROW_LENGTH_PLACEHOLDER = new byte[4];
+
+    private void append_block(int block_rows) throws IOException {
+        int raw_length = row_buffer.size();
+        int max_length = codec.max_compressed_bytes(raw_length);
+        if (compressed.length < max_length)
+            compressed = new byte[max_length];
+        int length = codec.compress(row_buffer.array(), raw_length, compressed);
+        if (!wal_segment.append_block(raw_length, compressed, length)) {
+            next_wal_writer(SnowpipeRestWALSegment.BLOCK_HEADER_BYTES + length);
+            if (!wal_segment.append_block(raw_length, compressed, length))
+                throw new IOException(String.format("Block does not fit in new WAL file %s", wal_fname));
+        }
+        appended_rows += block_rows;
+        cur_row += block_rows;
+        pending_bytes += SnowpipeRestWALSegment.RECORD_HEADER_BYTES + SnowpipeRestWALSegment.BLOCK_HEADER_BYTES + length;
+    }
+
+    synchronized long get_appended_rows() {
+        return appended_rows;
+    }
+
+    // Block until the first `rows` rows appended to the WAL are on disk.
+    // Only waits in group commit mode.
+    synchronized void wait_for_commit(long rows) {
+        if (WAL_FLUSH_GROUP_COMMIT != wal_flush)
+            return;
+        try {
+            while ((durable_rows < rows) && (null == commit_error))
+                wait();
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted waiting for WAL commit");
+        }
+        if (durable_rows < rows)
+            throw new RuntimeException("Error writing to WAL", commit_error);
+    }
+
+    private synchronized void mark_durable(long rows, long keys) {
+        if ((rows > durable_rows) || (keys > durable_keys)) {
+            durable_rows = Math.max(durable_rows, rows);
+            durable_keys = Math.max(durable_keys, keys);
+            notifyAll();
+        }
+    }
+
+    // Whether everything appended is durable, so no commit window is open
+    private boolean committer_idle() {
+        return (appended_rows == durable_rows) && (appended_keys == durable_keys);
+    }
+
+    // Group commit: requests append to the shared writer and wait; this
+    // thread issues a single fsync for everything appended during a commit
+    // window, which closes after group_commit_micros or once
+    // group_commit_bytes have been appended, whichever comes first.
+    private void group_commit_loop() {
+        while (true) {
+            long commit_rows;
+            long commit_keys;
+            long commit_bytes;
+            SnowpipeRestWALSegment commit_segment;
+            try {
+                synchronized (this) {
+                    while (committer_idle())
+                        wait();
+                    long deadline = System.nanoTime() + group_commit_micros * 1000;
+                    long remaining;
+                    while ((pending_bytes < group_commit_bytes) && ((remaining = deadline - System.nanoTime()) > 0))
+                        wait(remaining / 1000000, (int)(remaining % 1000000));
+                    commit_rows = appended_rows;
+                    commit_keys = appended_keys;
+                    commit_bytes = pending_bytes;
+                    commit_segment = wal_segment;
+                    pending_bytes = 0;
+                }
+            }
+            catch (InterruptedException ie) {
+                return;
+            }
+
+            try {
+                long start = System.nanoTime();
+                SnowpipeRestEvents.WALFlush flush_event = new SnowpipeRestEvents.WALFlush();
+                flush_event.begin();
+                commit_segment.force();
+                SnowpipeRestMetrics.record(metrics.wal_flush_timer, start);
+                flush_event.end();
+                if (flush_event.shouldCommit()) {
+                    flush_event.channel = channel.getFullyQualifiedName();
+                    flush_event.group_commit = true;
+                    flush_event.bytes = commit_bytes;
+                    flush_event.commit();
+                }
+            }
+            catch (UncheckedIOException uioe) {
+                fail_commit(uioe.getCause());
+                return;
+            }
+            mark_durable(commit_rows, commit_keys);
+        }
+    }
+
+    private synchronized void fail_commit(IOException ioe) {
+        logger.error(String.format("group_commit_loop: error syncing WAL in %s", wal_dir), ioe);
+        commit_error = ioe;
+        notifyAll();
+    }
+
     private CompletableFuture<Boolean> purge_file(String f) {
         return CompletableFuture.supplyAsync(() -> 
             {
@@ -225,25 +804,73 @@ public class SnowpipeRestWAL {
         );
     }
 
-    private Optional<CompletableFuture<Boolean>> purge_old_log_files() {
-        String last_offset = repo.getLatestCommittedOffsetToken();
+    // Runs on the tracker thread: poll the committed offset token and purge
+    // the WAL files that are entirely covered by it, off the request path
+    private void track_committed_offset() {
+        try {
+            sample_written_position();
+            String last_offset = channel.getLatestCommittedOffsetToken();
+            if ((null == last_offset) || (last_offset.equals(committed_token)))
+                return;
+            committed_token = last_offset;
+            if (last_offset.indexOf(token_separator) >= 0)
+                write_samples.headMap(SnowpipeRestOffsetWatcher.token_position(last_offset), true).clear();
+            purge_old_log_files(last_offset);
+        }
+        catch (Exception e) {
+            // Keep tracking; the next poll will try again
+            logger.warn(String.format("track_committed_offset: error tracking %s", wal_dir), e);
+        }
+    }
+
+    // Note when the latest written row was first seen, for the commit lag
+    private void sample_written_position() {
+        long position;
+        synchronized (this) {
+            if (0 == cur_row)
+                return;
+            position = ((long)wal_index << 32) | (cur_row - 1);
+        }
+        if (write_samples.isEmpty() || (position > write_samples.lastKey()))
+            write_samples.put(position, System.nanoTime());
+    }
+
+    private Optional<CompletableFuture<Boolean>> purge_old_log_files(String last_offset) {
+        SnowpipeRestEvents.WALPurge event = new SnowpipeRestEvents.WALPurge();
+        event.begin();
         logger.info(String.format("purge_old_log_files: last_offset: '%s'", last_offset));
-        if ((null == last_offset) || (0 == last_offset.length()))
+        if (0 == last_offset.length())
             // Nothing to do
             return Optional.empty();
         String fname = token_to_fname(last_offset);
-        int fname_idx = Integer.parseInt(fname.substring(wal_prefix.length() + 1));
-        
-        List<String> purgable = Stream.of(new File(wal_dir).listFiles())
-                .map(File::getName)
-                .filter(wf -> (Integer.parseInt(wf.substring(wal_prefix.length())) < fname_idx))
+        int fname_idx = fname_to_index(fname);
+
+        NavigableSet<Integer> purgable_idx = wal_segments.headSet(fname_idx, false);
+        if (purgable_idx.isEmpty())
+            return Optional.empty();
+        List<String> purgable = purgable_idx.stream()
+                .map(idx -> index_to_fname(idx))
                 .collect(Collectors.toList());
+        purgable_idx.clear();
+        synchronized (this) {
+            segment_start_rows.headMap(fname_idx, false).clear();
+        }
         logger.info(String.format("purge_old_log_files: purgable: %s", purgable));
 
         List<CompletableFuture<Boolean>> futures = purgable.stream().map(f -> purge_file(f)).collect(Collectors.toList());
         CompletableFuture<Boolean> combinedFuture = CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
             .thenApply(v -> futures.stream().map(CompletableFuture::join).reduce(true, (a,b) -> Boolean.logicalAnd(a,b)));  //.collect(Collectors.toList()));
-        
+        combinedFuture.thenAccept(purged -> {
+            event.end();
+            if (event.shouldCommit()) {
+                event.wal_dir = wal_dir;
+                event.token = last_offset;
+                event.files = purgable.size();
+                event.purged = purged;
+                event.commit();
+            }
+        });
+
         return Optional.of(combinedFuture);
     }
 
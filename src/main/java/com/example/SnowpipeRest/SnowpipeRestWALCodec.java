@@ -0,0 +1,107 @@
+package com.example.SnowpipeRest;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdCompressCtx;
+import com.github.luben.zstd.ZstdDecompressCtx;
+
+// Block compression for WAL segments (snowpiperest.wal.compression). One
+// codec compresses the blocks of one WAL, or decompresses those of one
+// segment being replayed, and reuses its native state across blocks.
+public class SnowpipeRestWALCodec {
+    // Codec ids, as stored in the segment header
+    static final int NONE = 0;
+    static final int DEFLATE = 1;
+    static final int ZSTD = 2;
+
+    private int codec;
+    private Deflater deflater;
+    private Inflater inflater;
+    private ZstdCompressCtx zstd_compress;
+    private ZstdDecompressCtx zstd_decompress;
+    private byte[] compressed = new byte[0];
+
+    SnowpipeRestWALCodec(int codec) {
+        if ((codec < NONE) || (codec > ZSTD))
+            throw new IllegalArgumentException(String.format("Unknown WAL codec: %d", codec));
+        this.codec = codec;
+    }
+
+    // The codec id of a snowpiperest.wal.compression setting
+    static int codec_id(String name) {
+        switch (name.trim().toLowerCase()) {
+            case "none":
+                return NONE;
+            case "deflate":
+                return DEFLATE;
+            case "zstd":
+                return ZSTD;
+            default:
+                throw new RuntimeException(String.format("Unknown WAL compression: %s", name));
+        }
+    }
+
+    // Buffer size that any compressed block of length bytes fits in
+    int max_compressed_bytes(int length) {
+        if (ZSTD == codec)
+            return (int)Zstd.compressBound(length);
+        // zlib's bound, with room to spare
+        return length + (length >> 12) + (length >> 14) + (length >> 25) + 64;
+    }
+
+    // Compress src[0, length) into dst; returns the compressed length
+    int compress(byte[] src, int length, byte[] dst) {
+        if (DEFLATE == codec) {
+            if (null == deflater)
+                deflater = new Deflater(Deflater.BEST_SPEED);
+            deflater.reset();
+            deflater.setInput(src, 0, length);
+            deflater.finish();
+            int n = deflater.deflate(dst, 0, dst.length);
+            if (!deflater.finished())
+                throw new IllegalStateException("WAL block does not fit its compression buffer");
+            return n;
+        }
+        if (null == zstd_compress)
+            zstd_compress = new ZstdCompressCtx().setLevel(1);
+        return zstd_compress.compressByteArray(dst, 0, dst.length, src, 0, length);
+    }
+
+    // Decompress src into dst, which must hold exactly the block
+    void decompress(ByteBuffer src, byte[] dst, int length) throws DataFormatException {
+        int n;
+        if (DEFLATE == codec) {
+            if (null == inflater)
+                inflater = new Inflater();
+            inflater.reset();
+            inflater.setInput(src);
+            n = inflater.inflate(dst, 0, length);
+        }
+        else {
+            int src_length = src.remaining();
+            if (compressed.length < src_length)
+                compressed = new byte[src_length];
+            src.get(compressed, 0, src_length);
+            if (null == zstd_decompress)
+                zstd_decompress = new ZstdDecompressCtx();
+            n = zstd_decompress.decompressByteArray(dst, 0, length, compressed, 0, src_length);
+        }
+        if (n != length)
+            throw new DataFormatException(String.format("WAL block decompressed to %d bytes, expected %d", n, length));
+    }
+
+    void close() {
+        if (null != deflater)
+            deflater.end();
+        if (null != inflater)
+            inflater.end();
+        if (null != zstd_compress)
+            zstd_compress.close();
+        if (null != zstd_decompress)
+            zstd_decompress.close();
+    }
+}
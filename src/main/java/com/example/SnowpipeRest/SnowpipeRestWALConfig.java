@@ -0,0 +1,26 @@
+package com.example.SnowpipeRest;
+
+// The snowpiperest.wal.* settings, as handed from the repository to each
+// channel's WAL
+public class SnowpipeRestWALConfig {
+    int wal_flush;
+    int segment_bytes;
+    long group_commit_bytes;
+    long group_commit_micros;
+    long commit_poll_millis;
+    long replay_batch_bytes;
+    int background_replay;
+    int compression;
+
+    public SnowpipeRestWALConfig(int wal_flush, int segment_bytes, long group_commit_bytes, long group_commit_micros,
+                                 long commit_poll_millis, long replay_batch_bytes, int background_replay, int compression) {
+        this.wal_flush = wal_flush;
+        this.segment_bytes = segment_bytes;
+        this.group_commit_bytes = group_commit_bytes;
+        this.group_commit_micros = group_commit_micros;
+        this.commit_poll_millis = commit_poll_millis;
+        this.replay_batch_bytes = replay_batch_bytes;
+        this.background_replay = background_replay;
+        this.compression = compression;
+    }
+}
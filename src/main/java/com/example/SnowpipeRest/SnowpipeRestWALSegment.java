@@ -0,0 +1,278 @@
+package com.example.SnowpipeRest;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// A pre-allocated, memory-mapped WAL file.
+//
+// Layout: an 8-byte header (magic, version) followed by records of
+//   [int length][int crc32 of payload][payload: one row as JSON]
+// The file is allocated up front and zero-filled, so a zero length marks
+// the end of the records. A record that runs past the end of the file or
+// whose CRC does not match is a torn tail from a crash mid-write.
+//
+// With compression (version 2), the header also holds the codec id, and
+// the payload of each record is a compressed block of rows:
+//   [int uncompressed length][compressed ([int length][one row as JSON])...]
+// Either way, next() returns one row at a time.
+//
+// A payload (or a row of a block) that starts with the KEY_RECORD byte
+// rather than '{' is an Idempotency-Key record, not a row. next() hands it
+// to the key record consumer, and it does not count in the row numbers of
+// offset tokens.
+public class SnowpipeRestWALSegment {
+    static Logger logger = LoggerFactory.getLogger(SnowpipeRestWALSegment.class);
+
+    static final int MAGIC = 0x53505257; // "SPRW"
+    static final int VERSION = 1;
+    static final int VERSION_BLOCKS = 2;
+    static final int HEADER_BYTES = 8;
+    static final int BLOCKS_HEADER_BYTES = 12;
+    static final int RECORD_HEADER_BYTES = 8;
+    static final int BLOCK_HEADER_BYTES = 4;
+    static final byte KEY_RECORD = 0x01;
+    static final int ZERO_FILL_CHUNK_BYTES = 1 << 20;
+
+    private File file;
+    private MappedByteBuffer buffer;
+    private CRC32 crc = new CRC32();
+
+    // For reading compressed blocks: the rows of the current block
+    private SnowpipeRestWALCodec codec;
+    private byte[] block_bytes = new byte[0];
+    private ByteBuffer block = null;
+    private Consumer<ByteBuffer> key_records = null;
+
+    private SnowpipeRestWALSegment(File file, MappedByteBuffer buffer, SnowpipeRestWALCodec codec) {
+        this.file = file;
+        this.buffer = buffer;
+        this.codec = codec;
+    }
+
+    // Smallest segment that can hold a record of `record_bytes` bytes
+    static int size_for(int record_bytes) {
+        return BLOCKS_HEADER_BYTES + RECORD_HEADER_BYTES + BLOCK_HEADER_BYTES + record_bytes + 4;
+    }
+
+    // The file is zero-filled by writing it, not just sized with setLength:
+    // a sparse file only gets its blocks when a mapped page is first
+    // written, and a full disk then faults the write instead of failing
+    // here with an IOException (after which the file is deleted)
+    static SnowpipeRestWALSegment create(File file, int size, int codec) throws IOException {
+        try {
+            return create_file(file, size, codec);
+        }
+        catch (IOException ioe) {
+            file.delete();
+            throw ioe;
+        }
+    }
+
+    private static SnowpipeRestWALSegment create_file(File file, int size, int codec) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(0);
+            FileChannel fc = raf.getChannel();
+            ByteBuffer zeros = ByteBuffer.allocate(Math.min(size, ZERO_FILL_CHUNK_BYTES));
+            long position = 0;
+            while (position < size) {
+                zeros.clear();
+                zeros.limit((int)Math.min(zeros.capacity(), size - position));
+                while (zeros.hasRemaining())
+                    position += fc.write(zeros, position);
+            }
+            MappedByteBuffer buffer = fc.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            try {
+                buffer.putInt(MAGIC);
+                if (SnowpipeRestWALCodec.NONE == codec) {
+                    buffer.putInt(VERSION);
+                }
+                else {
+                    buffer.putInt(VERSION_BLOCKS);
+                    buffer.putInt(codec);
+                }
+            }
+            catch (InternalError ie) {
+                throw new IOException(String.format("Error writing to %s", file), ie);
+            }
+            return new SnowpipeRestWALSegment(file, buffer, null);
+        }
+    }
+
+    static SnowpipeRestWALSegment open(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            if ((buffer.remaining() < HEADER_BYTES) || (MAGIC != buffer.getInt()))
+                throw new IOException(String.format("Not a WAL segment: %s", file));
+            int version = buffer.getInt();
+            if (VERSION == version)
+                return new SnowpipeRestWALSegment(file, buffer, null);
+            if ((VERSION_BLOCKS != version) || (buffer.remaining() < BLOCKS_HEADER_BYTES - HEADER_BYTES))
+                throw new IOException(String.format("Not a WAL segment: %s", file));
+            try {
+                return new SnowpipeRestWALSegment(file, buffer, new SnowpipeRestWALCodec(buffer.getInt()));
+            }
+            catch (IllegalArgumentException iae) {
+                throw new IOException(String.format("Unknown compression in WAL segment %s", file), iae);
+            }
+        }
+    }
+
+    // Files written before the binary format are plain JSON lines
+    static boolean is_segment(File file) {
+        if (file.length() < HEADER_BYTES)
+            return false;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return MAGIC == in.readInt();
+        }
+        catch (IOException ioe) {
+            return false;
+        }
+    }
+
+    // Append one record; returns false, and writes nothing, if it does not fit
+    boolean append(byte[] payload, int length) throws IOException {
+        // Keep room for the zero length that terminates the records
+        if (buffer.remaining() < RECORD_HEADER_BYTES + length + 4)
+            return false;
+        crc.reset();
+        crc.update(payload, 0, length);
+        int pos = buffer.position();
+        try {
+            buffer.putInt(length);
+            buffer.putInt((int)crc.getValue());
+            buffer.put(payload, 0, length);
+        }
+        catch (InternalError ie) {
+            throw write_error(pos, ie);
+        }
+        return true;
+    }
+
+    // Append one compressed block of rows; returns false, and writes
+    // nothing, if it does not fit
+    boolean append_block(int raw_length, byte[] compressed, int length) throws IOException {
+        int payload_length = BLOCK_HEADER_BYTES + length;
+        if (buffer.remaining() < RECORD_HEADER_BYTES + payload_length + 4)
+            return false;
+        crc.reset();
+        for (int shift = 24; shift >= 0; shift -= 8)
+            crc.update(raw_length >>> shift);
+        crc.update(compressed, 0, length);
+        int pos = buffer.position();
+        try {
+            buffer.putInt(payload_length);
+            buffer.putInt((int)crc.getValue());
+            buffer.putInt(raw_length);
+            buffer.put(compressed, 0, length);
+        }
+        catch (InternalError ie) {
+            throw write_error(pos, ie);
+        }
+        return true;
+    }
+
+    // A write to the mapping that faulted (the JVM raises an InternalError
+    // for a SIGBUS, as when the file cannot be backed): fail it as an I/O
+    // error, and leave the next append where this one started
+    private IOException write_error(int pos, InternalError ie) {
+        buffer.position(pos);
+        return new IOException(String.format("Error writing to %s at byte %d", file, pos), ie);
+    }
+
+    // Where next() (and skip()) hand the key records they pass over
+    void on_key_record(Consumer<ByteBuffer> key_records) {
+        this.key_records = key_records;
+    }
+
+    // Returns a view of the next row, valid until the next call, or null
+    // at the end of the rows (including a torn tail)
+    ByteBuffer next() {
+        ByteBuffer row;
+        while ((null != (row = next_row())) && row.hasRemaining() && (KEY_RECORD == row.get(row.position()))) {
+            if (null != key_records)
+                key_records.accept(row);
+        }
+        return row;
+    }
+
+    private ByteBuffer next_row() {
+        if (null == codec)
+            return next_record();
+        while ((null == block) || !block.hasRemaining()) {
+            ByteBuffer payload = next_record();
+            if (null == payload)
+                return null;
+            int raw_length = payload.getInt();
+            if (block_bytes.length < raw_length)
+                block_bytes = new byte[raw_length];
+            try {
+                codec.decompress(payload, block_bytes, raw_length);
+            }
+            catch (DataFormatException dfe) {
+                logger.warn(String.format("Corrupt block in %s: %s", file, dfe.getMessage()));
+                return null;
+            }
+            block = ByteBuffer.wrap(block_bytes, 0, raw_length);
+        }
+        int length = block.getInt();
+        ByteBuffer row = block.slice();
+        row.limit(length);
+        block.position(block.position() + length);
+        return row;
+    }
+
+    // Returns a view of the next record's payload, or null at the end of
+    // the records (including a torn tail)
+    private ByteBuffer next_record() {
+        if (buffer.remaining() < RECORD_HEADER_BYTES)
+            return null;
+        int pos = buffer.position();
+        int length = buffer.getInt();
+        int checksum = buffer.getInt();
+        if (0 == length)
+            return null;
+        if ((length < 0) || (length > buffer.remaining())) {
+            logger.warn(String.format("Torn record in %s at byte %d (length %d)", file, pos, length));
+            return null;
+        }
+        ByteBuffer payload = buffer.slice();
+        payload.limit(length);
+        crc.reset();
+        crc.update(payload.duplicate());
+        if (checksum != (int)crc.getValue()) {
+            logger.warn(String.format("Torn record in %s at byte %d (checksum mismatch)", file, pos));
+            return null;
+        }
+        buffer.position(pos + RECORD_HEADER_BYTES + length);
+        return payload;
+    }
+
+    // Skip over `count` rows; returns the number actually skipped
+    int skip(int count) {
+        int skipped = 0;
+        while ((skipped < count) && (null != next()))
+            skipped++;
+        return skipped;
+    }
+
+    void force() {
+        buffer.force();
+    }
+
+    void close() {
+        if (null != codec)
+            codec.close();
+    }
+}
@@ -0,0 +1,120 @@
+package com.example.SnowpipeRest;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.FileSystemUtils;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import net.snowflake.ingest.streaming.OpenChannelRequest;
+
+// Admission control turns requests away with a 429 and a Retry-After: on
+// the rows and bytes in flight, and on the backlog of a local channel
+// whose commits lag behind
+public class SnowpipeRestAdmissionTest {
+    static final String WORK_DIR = "target/admission-test";
+    static final long COMMIT_DELAY_MILLIS = 1000;
+    static final long MAX_RETRY_AFTER_SECONDS = 30;
+
+    private static SnowpipeRestAdmission in_flight_admission(long max_rows, long max_bytes) {
+        return new SnowpipeRestAdmission(max_rows, max_bytes, 0, 0, 10, MAX_RETRY_AFTER_SECONDS, List::of);
+    }
+
+    private static void assertTooManyRequests(SnowpipeRestOverloadedException e) {
+        assertEquals(HttpStatus.TOO_MANY_REQUESTS, e.getStatus());
+        assertTrue((e.getRetryAfterSeconds() >= 1) && (e.getRetryAfterSeconds() <= MAX_RETRY_AFTER_SECONDS));
+    }
+
+    @Test
+    void rows_in_flight_are_limited() {
+        SnowpipeRestAdmission admission = in_flight_admission(10, 0);
+        // One request is always let through, however big
+        admission.admit(100, 1);
+        assertTooManyRequests(assertThrows(SnowpipeRestOverloadedException.class, () -> admission.admit(1, 1)));
+        admission.release(100, 1);
+
+        admission.admit(8, 1);
+        assertTooManyRequests(assertThrows(SnowpipeRestOverloadedException.class, () -> admission.admit(5, 1)));
+        admission.admit(2, 1);
+        admission.release(8, 1);
+        admission.admit(5, 1);
+    }
+
+    @Test
+    void bytes_in_flight_are_limited() {
+        SnowpipeRestAdmission admission = in_flight_admission(0, 1000);
+        admission.admit(1, 800);
+        assertTooManyRequests(assertThrows(SnowpipeRestOverloadedException.class, () -> admission.admit(1, 300)));
+        admission.release(1, 800);
+        admission.admit(1, 300);
+    }
+
+    @Test
+    void requests_are_turned_away_until_the_backlog_drains() throws InterruptedException {
+        FileSystemUtils.deleteRecursively(new File(WORK_DIR));
+        SnowpipeRestLocalClient client = new SnowpipeRestLocalClient("TEST", WORK_DIR, 0, COMMIT_DELAY_MILLIS, 0, 0);
+        OpenChannelRequest request = OpenChannelRequest.builder("CHANNEL")
+            .setDBName("DB").setSchemaName("PUBLIC").setTableName("ROWS")
+            .setOnErrorOption(OpenChannelRequest.OnErrorOption.CONTINUE)
+            .build();
+        SnowpipeRestChannel channel = new SnowpipeRestChannel(client.openChannel(request), 0, null, null, 10,
+            new SnowpipeRestMetrics(new SimpleMeterRegistry()));
+        channel.trackUncommittedRows();
+        SnowpipeRestAdmission admission = new SnowpipeRestAdmission(0, 0, 100, 0, 10, MAX_RETRY_AFTER_SECONDS, () -> List.of(channel));
+        try {
+            for (int i = 0; i < 500; i++)
+                channel.insertRows(List.of(Map.of("ID", i)), 1);
+
+            SnowpipeRestOverloadedException rejected = null;
+            long deadline = System.currentTimeMillis() + 10 * COMMIT_DELAY_MILLIS;
+            while ((null == rejected) && (System.currentTimeMillis() < deadline)) {
+                try {
+                    admission.check();
+                    Thread.sleep(5);
+                }
+                catch (SnowpipeRestOverloadedException e) {
+                    rejected = e;
+                }
+            }
+            assertNotNull(rejected);
+            assertTooManyRequests(rejected);
+
+            // Once the rows are committed
+            rejected = null;
+            deadline = System.currentTimeMillis() + 10 * COMMIT_DELAY_MILLIS;
+            do {
+                Thread.sleep(50);
+                try {
+                    admission.check();
+                    rejected = null;
+                }
+                catch (SnowpipeRestOverloadedException e) {
+                    rejected = e;
+                }
+            } while ((null != rejected) && (System.currentTimeMillis() < deadline));
+            assertNull(rejected);
+        }
+        finally {
+            channel.close();
+        }
+    }
+
+    @Test
+    void the_controller_answers_429_with_retry_after() {
+        ResponseEntity<String> response = new SnowpipeRestController().handleOverloaded(new SnowpipeRestOverloadedException("Too many rows in flight (10)", 7));
+        assertEquals(HttpStatus.TOO_MANY_REQUESTS, response.getStatusCode());
+        assertEquals("7", response.getHeaders().getFirst(HttpHeaders.RETRY_AFTER));
+        assertEquals("Too many rows in flight (10)", response.getBody());
+    }
+}
@@ -0,0 +1,94 @@
+package com.example.SnowpipeRest;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.FileSystemUtils;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import net.snowflake.ingest.streaming.InsertValidationResponse;
+import net.snowflake.ingest.streaming.OpenChannelRequest;
+
+// The insert errors of a batch are handed back to each request with its
+// own row indexes, against the local client, which fails every
+// ERROR_EVERY-th row
+public class SnowpipeRestBatcherTest {
+    static final String WORK_DIR = "target/batcher-test";
+    static final int ERROR_EVERY = 3;
+    static final int[] REQUEST_ROWS = { 1, 4, 2, 7, 3, 5 };
+
+    private SnowpipeRestChannel channel;
+    private SnowpipeRestBatcher batcher;
+
+    @BeforeEach
+    void open() {
+        FileSystemUtils.deleteRecursively(new File(WORK_DIR));
+        SnowpipeRestLocalClient client = new SnowpipeRestLocalClient("TEST", WORK_DIR, 0, 0, ERROR_EVERY, 0);
+        OpenChannelRequest request = OpenChannelRequest.builder("CHANNEL")
+            .setDBName("DB").setSchemaName("PUBLIC").setTableName("ROWS")
+            .setOnErrorOption(OpenChannelRequest.OnErrorOption.CONTINUE)
+            .build();
+        channel = new SnowpipeRestChannel(client.openChannel(request), 0, null, null, 10,
+            new SnowpipeRestMetrics(new SimpleMeterRegistry()));
+        // Long enough for every request to join the first batch
+        batcher = new SnowpipeRestBatcher(channel, 500000, 1000, 1 << 20);
+    }
+
+    @AfterEach
+    void close() {
+        batcher.close();
+        channel.close();
+    }
+
+    private static List<Map<String,Object>> rows(int req, int n) {
+        List<Map<String,Object>> rows = new ArrayList<Map<String,Object>>();
+        for (int i = 0; i < n; i++)
+            rows.add(Map.of("REQ", req, "ROW", i));
+        return rows;
+    }
+
+    @Test
+    void errors_are_split_by_request() throws Exception {
+        List<CompletableFuture<SnowpipeRestChannel.InsertResult>> results = new ArrayList<CompletableFuture<SnowpipeRestChannel.InsertResult>>();
+        int total_rows = 0;
+        for (int req = 0; req < REQUEST_ROWS.length; req++) {
+            results.add(batcher.submit(rows(req, REQUEST_ROWS[req]), 10L * REQUEST_ROWS[req]));
+            total_rows += REQUEST_ROWS[req];
+        }
+
+        String token = results.get(0).get(30, TimeUnit.SECONDS).token;
+        int errors = 0;
+        for (int req = 0; req < REQUEST_ROWS.length; req++) {
+            SnowpipeRestChannel.InsertResult result = results.get(req).get(30, TimeUnit.SECONDS);
+            // One insert for all of them
+            assertEquals(token, result.token);
+            for (InsertValidationResponse.InsertError error : result.response.getInsertErrors()) {
+                Map<?,?> row = (Map<?,?>)error.getRowContent();
+                assertEquals(req, row.get("REQ"));
+                assertEquals(row.get("ROW"), (int)error.getRowIndex());
+                assertTrue(error.getRowIndex() < REQUEST_ROWS[req]);
+                errors++;
+            }
+            assertEquals(result.response.getErrorRowCount(), result.response.getInsertErrors().size());
+        }
+        assertEquals(total_rows / ERROR_EVERY, errors);
+    }
+
+    @Test
+    void a_lone_request_keeps_its_errors() throws Exception {
+        SnowpipeRestChannel.InsertResult result = batcher.submit(rows(0, 10), 100).get(30, TimeUnit.SECONDS);
+        assertEquals(10 / ERROR_EVERY, result.response.getErrorRowCount());
+        for (InsertValidationResponse.InsertError error : result.response.getInsertErrors())
+            assertEquals(((Map<?,?>)error.getRowContent()).get("ROW"), (int)error.getRowIndex());
+    }
+}
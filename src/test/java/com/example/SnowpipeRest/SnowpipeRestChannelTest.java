@@ -0,0 +1,61 @@
+package com.example.SnowpipeRest;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.FileSystemUtils;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import net.snowflake.ingest.streaming.OpenChannelRequest;
+
+// The offset tokens a channel keeps for admission control, against the
+// local client, without a WAL
+public class SnowpipeRestChannelTest {
+    static final String WORK_DIR = "target/channel-test";
+    static final int INSERTS = 1000;
+
+    private SnowpipeRestChannel channel;
+
+    @BeforeEach
+    void open() {
+        FileSystemUtils.deleteRecursively(new File(WORK_DIR));
+        SnowpipeRestLocalClient client = new SnowpipeRestLocalClient("TEST", WORK_DIR, 0, 0, 0, 0);
+        OpenChannelRequest request = OpenChannelRequest.builder("CHANNEL")
+            .setDBName("DB").setSchemaName("PUBLIC").setTableName("ROWS")
+            .setOnErrorOption(OpenChannelRequest.OnErrorOption.CONTINUE)
+            .build();
+        channel = new SnowpipeRestChannel(client.openChannel(request), 0, null, null, 10,
+            new SnowpipeRestMetrics(new SimpleMeterRegistry()));
+    }
+
+    @AfterEach
+    void close() {
+        channel.close();
+    }
+
+    @Test
+    void issued_tokens_are_not_kept_without_admission_polling() {
+        for (int i = 0; i < INSERTS; i++)
+            channel.insertRows(List.of(Map.of("ID", i)), 1);
+        assertEquals(0, channel.getIssuedCount());
+    }
+
+    @Test
+    void issued_tokens_are_dropped_once_committed() throws InterruptedException {
+        channel.trackUncommittedRows();
+        for (int i = 0; i < INSERTS; i++)
+            channel.insertRows(List.of(Map.of("ID", i)), 1);
+        long deadline = System.currentTimeMillis() + 30000;
+        while ((channel.refreshUncommittedRows() > 0) && (System.currentTimeMillis() < deadline))
+            Thread.sleep(10);
+        assertEquals(0, channel.refreshUncommittedRows());
+        assertEquals(0, channel.getIssuedCount());
+        assertEquals(INSERTS, channel.getCommittedRows());
+    }
+}
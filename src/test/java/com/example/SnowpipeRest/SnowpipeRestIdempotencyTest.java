@@ -0,0 +1,119 @@
+package com.example.SnowpipeRest;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+// The Idempotency-Key cache of one table on its own: requests in flight
+// are never dropped, and done ones are evicted by count, bytes and age
+public class SnowpipeRestIdempotencyTest {
+    static final long TTL_MILLIS = 60000;
+
+    private static SnowpipeInsertResponse response() {
+        return new SnowpipeInsertResponse(2, 1, 1).addError(1, "{\"ID\":\"x\"}", "Invalid value");
+    }
+
+    // Register a request under key and accept it, as the repository does
+    private static SnowpipeRestIdempotency.Entry accept(SnowpipeRestIdempotency idempotency, String key) {
+        SnowpipeRestIdempotency.Entry entry = new SnowpipeRestIdempotency.Entry(key, System.currentTimeMillis());
+        assertNull(idempotency.put_if_absent(entry));
+        idempotency.accept(entry, response(), Map.of());
+        return entry;
+    }
+
+    // Whether key is still remembered; if not, it is now, as in flight
+    private static boolean remembered(SnowpipeRestIdempotency idempotency, String key) {
+        return null != idempotency.put_if_absent(new SnowpipeRestIdempotency.Entry(key, System.currentTimeMillis()));
+    }
+
+    @Test
+    void a_retry_gets_the_request_in_flight() {
+        SnowpipeRestIdempotency idempotency = new SnowpipeRestIdempotency(1, 1 << 20, TTL_MILLIS);
+        SnowpipeRestIdempotency.Entry first = new SnowpipeRestIdempotency.Entry("a", System.currentTimeMillis());
+        assertNull(idempotency.put_if_absent(first));
+        assertSame(first, idempotency.put_if_absent(new SnowpipeRestIdempotency.Entry("a", System.currentTimeMillis())));
+
+        // Beyond max_keys, but still in flight
+        accept(idempotency, "b");
+        accept(idempotency, "c");
+        assertSame(first, idempotency.put_if_absent(new SnowpipeRestIdempotency.Entry("a", System.currentTimeMillis())));
+        assertFalse(first.response.isDone());
+
+        idempotency.accept(first, response(), Map.of());
+        SnowpipeInsertResponse retry = idempotency.put_if_absent(new SnowpipeRestIdempotency.Entry("a", System.currentTimeMillis())).response.join();
+        assertEquals(2, retry.getNum_attempted());
+        assertEquals(1, retry.getNum_succeeded());
+        assertEquals(1, retry.getErrors().size());
+    }
+
+    @Test
+    void an_abandoned_request_can_be_retried() {
+        SnowpipeRestIdempotency idempotency = new SnowpipeRestIdempotency(100, 1 << 20, TTL_MILLIS);
+        SnowpipeRestIdempotency.Entry first = new SnowpipeRestIdempotency.Entry("a", System.currentTimeMillis());
+        assertNull(idempotency.put_if_absent(first));
+        SnowpipeRestIdempotency.Entry waiting = idempotency.put_if_absent(new SnowpipeRestIdempotency.Entry("a", System.currentTimeMillis()));
+
+        idempotency.abandon(first, new SnowpipeRestOverloadedException("Overloaded", 1));
+        assertTrue(waiting.response.isCompletedExceptionally());
+        assertFalse(remembered(idempotency, "a"));
+    }
+
+    @Test
+    void done_keys_are_evicted_beyond_max_keys() {
+        SnowpipeRestIdempotency idempotency = new SnowpipeRestIdempotency(3, 1 << 20, TTL_MILLIS);
+        for (int i = 0; i < 10; i++)
+            accept(idempotency, "k" + i);
+        assertTrue(remembered(idempotency, "k9"));
+        assertTrue(remembered(idempotency, "k7"));
+        assertFalse(remembered(idempotency, "k6"));
+    }
+
+    @Test
+    void done_keys_are_evicted_beyond_max_bytes() {
+        long record_bytes = accept(new SnowpipeRestIdempotency(100, 1 << 20, TTL_MILLIS), "k0").bytes;
+        assertTrue(record_bytes > 0);
+
+        SnowpipeRestIdempotency idempotency = new SnowpipeRestIdempotency(100, 3 * record_bytes, TTL_MILLIS);
+        SnowpipeRestIdempotency.Entry in_flight = new SnowpipeRestIdempotency.Entry("in-flight", System.currentTimeMillis());
+        assertNull(idempotency.put_if_absent(in_flight));
+        for (int i = 0; i < 10; i++)
+            assertEquals(record_bytes, accept(idempotency, "k" + i).bytes);
+        assertTrue(remembered(idempotency, "k9"));
+        assertTrue(remembered(idempotency, "k7"));
+        assertFalse(remembered(idempotency, "k6"));
+        assertFalse(remembered(idempotency, "k0"));
+        assertSame(in_flight, idempotency.put_if_absent(new SnowpipeRestIdempotency.Entry("in-flight", System.currentTimeMillis())));
+    }
+
+    @Test
+    void done_keys_expire() {
+        SnowpipeRestIdempotency idempotency = new SnowpipeRestIdempotency(100, 1 << 20, TTL_MILLIS);
+        long expired_millis = System.currentTimeMillis() - 2 * TTL_MILLIS;
+        SnowpipeRestIdempotency.Entry old = new SnowpipeRestIdempotency.Entry("old", expired_millis);
+        SnowpipeRestIdempotency.Entry old_in_flight = new SnowpipeRestIdempotency.Entry("old-in-flight", expired_millis);
+        assertNull(idempotency.put_if_absent(old));
+        assertNull(idempotency.put_if_absent(old_in_flight));
+        idempotency.accept(old, response(), Map.of());
+        accept(idempotency, "new");
+
+        assertFalse(remembered(idempotency, "old"));
+        assertTrue(remembered(idempotency, "old-in-flight"));
+        assertTrue(remembered(idempotency, "new"));
+    }
+
+    @Test
+    void keys_must_be_1_to_256_characters() {
+        SnowpipeRestIdempotency.check_key("k");
+        SnowpipeRestIdempotency.check_key("k".repeat(SnowpipeRestIdempotency.MAX_KEY_LENGTH));
+        assertThrows(SnowpipeRestJsonParseException.class, () -> SnowpipeRestIdempotency.check_key(""));
+        assertThrows(SnowpipeRestJsonParseException.class,
+            () -> SnowpipeRestIdempotency.check_key("k".repeat(SnowpipeRestIdempotency.MAX_KEY_LENGTH + 1)));
+    }
+}
@@ -0,0 +1,201 @@
+package com.example.SnowpipeRest;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.util.FileSystemUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+// The recovery check of perf-testing/local_load_test.py, sized for mvn test,
+// against the local client: the service is crashed part way through a load
+// (in a child JVM, as the local channel halts the JVM it runs in), then
+// started here on the same WAL and local directories, and every row it
+// acknowledged must be committed exactly once, before and after more load.
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+public class SnowpipeRestRecoveryTest {
+    static final String WORK_DIR = "target/recovery-test";
+    static final int ROWS_PER_REQUEST = 5;
+    static final int CRASH_AFTER_ROWS = 500;
+    static final int LOAD_REQUESTS = 200;
+    static final int CONCURRENCY = 8;
+    static final long TIMEOUT_SECONDS = 60;
+
+    // For both the crashed service and the one started here
+    static final String[] PROPERTIES = {
+        "snowflake.url=local", "snowflake.user=local", "snowflake.role=local", "snowflake.private_key=local",
+        "snowpipe.name=RECOVERYTEST", "snowpipe.database=RECOVERYTEST", "snowpipe.schema=PUBLIC", "snowpipe.table=ROWS",
+        "snowpiperest.client=local",
+        "snowpiperest.local.dir=" + WORK_DIR + "/local",
+        "snowpiperest.wal.dir=" + WORK_DIR + "/wal",
+        "snowpiperest.channels=2"
+    };
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+    private static final HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+
+    // The ids of the rows acknowledged before the crash
+    private static Set<Integer> crash_acked;
+
+    @LocalServerPort
+    private int port;
+
+    @DynamicPropertySource
+    static void properties(DynamicPropertyRegistry registry) {
+        for (String property : PROPERTIES) {
+            int eq = property.indexOf('=');
+            registry.add(property.substring(0, eq), () -> property.substring(eq + 1));
+        }
+        registry.add("snowpiperest.local.commit_delay_millis", () -> "100");
+    }
+
+    // Runs before the service is started here
+    @BeforeAll
+    static void crash() throws Exception {
+        FileSystemUtils.deleteRecursively(new File(WORK_DIR));
+        new File(WORK_DIR).mkdirs();
+
+        int crash_port = free_port();
+        List<String> cmd = new ArrayList<String>(List.of(new File(System.getProperty("java.home"), "bin/java").getPath(),
+            "-cp", System.getProperty("java.class.path"), SnowpipeRestApplication.class.getName(),
+            "--server.port=" + crash_port,
+            "--snowpiperest.local.commit_delay_millis=1000",
+            "--snowpiperest.local.crash_after_rows=" + CRASH_AFTER_ROWS));
+        for (String property : PROPERTIES)
+            cmd.add("--" + property);
+        Process proc = new ProcessBuilder(cmd).redirectErrorStream(true).redirectOutput(new File(WORK_DIR, "crash.log")).start();
+        try {
+            wait_until_up(crash_port, proc);
+            crash_acked = send(crash_port, 0, 2 * CRASH_AFTER_ROWS / ROWS_PER_REQUEST + 1);
+            assertTrue(proc.waitFor(TIMEOUT_SECONDS, TimeUnit.SECONDS), "The service should have crashed");
+        }
+        finally {
+            proc.destroyForcibly();
+        }
+        assertFalse(crash_acked.isEmpty(), "No rows were acknowledged before the crash");
+    }
+
+    @Test
+    void replays_acknowledged_rows_exactly_once() throws Exception {
+        assert_committed(crash_acked);
+
+        Set<Integer> load_acked = send(port, 1000000, LOAD_REQUESTS);
+        assertEquals(LOAD_REQUESTS * ROWS_PER_REQUEST, load_acked.size(), "Rows rejected under load");
+        Set<Integer> acked = new HashSet<Integer>(crash_acked);
+        acked.addAll(load_acked);
+        assert_committed(acked);
+    }
+
+    // Send requests of ROWS_PER_REQUEST rows, with ids from first_id on, and
+    // return the ids of the rows acknowledged
+    private static Set<Integer> send(int port, int first_id, int requests) throws InterruptedException {
+        Set<Integer> acked = ConcurrentHashMap.newKeySet();
+        ExecutorService pool = Executors.newFixedThreadPool(CONCURRENCY);
+        for (int r = 0; r < requests; r++) {
+            int first = first_id + r * ROWS_PER_REQUEST;
+            pool.execute(() -> {
+                List<Integer> ids = IntStream.range(first, first + ROWS_PER_REQUEST).boxed().collect(Collectors.toList());
+                String body = ids.stream().map(id -> String.format("{\"ID\": %d, \"PAYLOAD\": \"%s\"}", id, "x".repeat(100)))
+                    .collect(Collectors.joining(",", "[", "]"));
+                HttpRequest request = HttpRequest.newBuilder(URI.create(String.format("http://localhost:%d/snowpipe/insert", port)))
+                    .timeout(Duration.ofSeconds(TIMEOUT_SECONDS))
+                    .header("Content-Type", "application/json")
+                    .PUT(HttpRequest.BodyPublishers.ofString(body))
+                    .build();
+                try {
+                    if (200 == client.send(request, HttpResponse.BodyHandlers.ofString()).statusCode())
+                        acked.addAll(ids);
+                }
+                catch (IOException | InterruptedException e) {
+                    // Not acknowledged, as when the service crashes
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(2 * TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        return acked;
+    }
+
+    // Wait for every acknowledged row to be committed, then check for
+    // missing and duplicate rows
+    private static void assert_committed(Set<Integer> acked) throws Exception {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS);
+        List<Integer> ids;
+        Set<Integer> missing;
+        while (true) {
+            ids = committed_ids();
+            missing = new HashSet<Integer>(acked);
+            missing.removeAll(ids);
+            if (missing.isEmpty() || (System.currentTimeMillis() > deadline))
+                break;
+            Thread.sleep(500);
+        }
+        assertTrue(missing.isEmpty(), String.format("%d acknowledged rows missing", missing.size()));
+        assertEquals(new HashSet<Integer>(ids).size(), ids.size(), "Duplicate rows committed");
+    }
+
+    private static List<Integer> committed_ids() throws IOException {
+        List<Integer> ids = new ArrayList<Integer>();
+        File[] files = new File(WORK_DIR, "local").listFiles((d, n) -> n.endsWith(".ndjson"));
+        if (null == files)
+            return ids;
+        for (File file : files) {
+            for (String line : Files.readAllLines(file.toPath())) {
+                if (!line.isBlank())
+                    ids.add(objectMapper.readTree(line).path("ID").asInt());
+            }
+        }
+        return ids;
+    }
+
+    private static void wait_until_up(int port, Process proc) throws Exception {
+        HttpRequest hello = HttpRequest.newBuilder(URI.create(String.format("http://localhost:%d/snowpipe/hello", port)))
+            .timeout(Duration.ofSeconds(1)).build();
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(2 * TIMEOUT_SECONDS);
+        while (System.currentTimeMillis() < deadline) {
+            assertTrue(proc.isAlive(), String.format("The service exited with %s; see %s/crash.log", proc.isAlive() ? "" : proc.exitValue(), WORK_DIR));
+            try {
+                if (200 == client.send(hello, HttpResponse.BodyHandlers.discarding()).statusCode())
+                    return;
+            }
+            catch (IOException ioe) {
+                // Not up yet
+            }
+            Thread.sleep(500);
+        }
+        throw new AssertionError("The service did not start");
+    }
+
+    private static int free_port() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.example.SnowpipeRest;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+// Rows read into SnowpipeRestRow must be the maps Jackson reads into a
+// LinkedHashMap: same entries, same order, same equals and hashCode
+public class SnowpipeRestRowTest {
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private SnowpipeRestColumns columns = new SnowpipeRestColumns();
+
+    private Map<String,Object> read(String json) throws IOException {
+        try (JsonParser parser = objectMapper.getFactory().createParser(json)) {
+            return SnowpipeRestRow.read(parser, columns, objectMapper);
+        }
+    }
+
+    private static LinkedHashMap<String,Object> expected(String json) throws IOException {
+        return objectMapper.readValue(json, new TypeReference<LinkedHashMap<String,Object>>() {});
+    }
+
+    private void assertReadsLikeMap(String json) throws IOException {
+        Map<String,Object> row = read(json);
+        LinkedHashMap<String,Object> expected = expected(json);
+        assertEquals(new ArrayList<String>(expected.keySet()), new ArrayList<String>(row.keySet()), json);
+        assertEquals(new ArrayList<Object>(expected.values()), new ArrayList<Object>(row.values()), json);
+        assertEquals(expected, row, json);
+        assertEquals(expected.size(), row.size(), json);
+    }
+
+    // A JSON object of the columns named, with value i for the i-th
+    private static String object(List<String> names) {
+        StringBuilder json = new StringBuilder("{");
+        for (int i = 0; i < names.size(); i++)
+            json.append((i > 0) ? "," : "").append('"').append(names.get(i)).append("\":").append(i);
+        return json.append('}').toString();
+    }
+
+    @Test
+    void rows_with_the_same_and_new_columns() throws IOException {
+        assertReadsLikeMap("{\"A\":1,\"B\":\"x\",\"C\":null}");
+        assertReadsLikeMap("{\"A\":2,\"B\":\"y\",\"C\":3.5}");
+        assertReadsLikeMap("{\"A\":3,\"D\":true,\"B\":\"z\"}");
+        assertReadsLikeMap("{\"C\":{\"N\":[1,2,{\"M\":null}]},\"A\":4}");
+        assertReadsLikeMap("{}");
+        assertEquals(4, columns.size());
+    }
+
+    @Test
+    void repeated_columns_keep_the_last_value_in_the_first_place() throws IOException {
+        assertReadsLikeMap("{\"A\":1,\"B\":2}");
+        // Follows the last layout, then repeats
+        assertReadsLikeMap("{\"A\":1,\"B\":2,\"A\":3}");
+        assertReadsLikeMap("{\"B\":1,\"A\":2,\"B\":3,\"B\":4}");
+
+        // Wider than SnowpipeRestRow.SCAN_COLUMNS, shuffled, with repeats
+        Random random = new Random(42);
+        List<String> names = new ArrayList<String>();
+        for (int i = 0; i < 3 * SnowpipeRestRow.SCAN_COLUMNS; i++)
+            names.add("COL_" + i);
+        for (int n = 0; n < 50; n++) {
+            List<String> row = new ArrayList<String>(names);
+            Collections.shuffle(row, random);
+            for (int i = 0; i < 5; i++)
+                row.add(row.get(random.nextInt(row.size())));
+            assertReadsLikeMap(object(row));
+        }
+    }
+
+    @Test
+    void rows_beyond_max_columns_are_read_as_maps() throws IOException {
+        List<String> names = new ArrayList<String>();
+        for (int i = 0; i <= SnowpipeRestColumns.MAX_COLUMNS; i++)
+            names.add("COL_" + i);
+        assertReadsLikeMap(object(names));
+        assertEquals(SnowpipeRestColumns.MAX_COLUMNS, columns.size());
+        assertReadsLikeMap("{\"COL_0\":1,\"NEW\":2}");
+        assertEquals(-1, columns.lookup("NEW"));
+    }
+
+    @Test
+    void equals_and_hash_code_match_hash_map() throws IOException {
+        Map<String,Object> row = read("{\"A\":1,\"B\":\"x\",\"C\":null}");
+        HashMap<String,Object> map = new HashMap<String,Object>(expected("{\"C\":null,\"B\":\"x\",\"A\":1}"));
+        assertEquals(map, row);
+        assertEquals(row, map);
+        assertEquals(map.hashCode(), row.hashCode());
+
+        map.put("A", 2);
+        assertNotEquals(map, row);
+        assertNotEquals(row, map);
+
+        assertEquals(1, row.get("A"));
+        assertNull(row.get("C"));
+        assertTrue(row.containsKey("C"));
+        assertNull(row.get("UNKNOWN"));
+        assertFalse(row.containsKey("UNKNOWN"));
+        // A column of the table that this row does not have
+        read("{\"D\":1}");
+        assertFalse(row.containsKey("D"));
+    }
+
+    @Test
+    void columns_keep_their_ids_and_share_layouts() {
+        int a = columns.id("A");
+        int b = columns.id("B");
+        assertEquals(a, columns.id("A"));
+        assertEquals(a, columns.lookup("A"));
+        assertEquals(-1, columns.lookup("C"));
+        assertEquals("B", columns.name(b));
+
+        int[] layout = columns.layout(new int[] { a, b, 0 }, 2);
+        assertSame(layout, columns.layout(new int[] { a, b }, 2));
+        assertSame(layout, columns.last_layout());
+        assertNotSame(layout, columns.layout(new int[] { b, a }, 2));
+    }
+}
@@ -0,0 +1,89 @@
+package com.example.SnowpipeRest;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.FileSystemUtils;
+
+// Sharding on its own: keys route to the shard clients can compute, and
+// each shard is claimed by one instance at a time
+public class SnowpipeRestShardingTest {
+    static final String WORK_DIR = "target/sharding-test";
+    static final int SHARDS = 8;
+
+    @BeforeEach
+    void clean() {
+        FileSystemUtils.deleteRecursively(new File(WORK_DIR));
+    }
+
+    @Test
+    void keys_route_by_crc32() {
+        SnowpipeRestSharding sharding = new SnowpipeRestSharding(SHARDS, "", WORK_DIR);
+        assertNull(sharding.get_key_field());
+        // As zlib.crc32(key.encode()) % 8 in Python
+        assertEquals(2, sharding.shard_of("abc"));
+        assertEquals(5, sharding.shard_of("customer-42"));
+        assertEquals(0, sharding.shard_of(""));
+        assertEquals(5, sharding.shard_of("ü"));
+
+        int[] counts = new int[SHARDS];
+        for (int i = 0; i < 8000; i++)
+            counts[sharding.shard_of("key-" + i)]++;
+        for (int count : counts)
+            assertEquals(1000, count, 200);
+    }
+
+    @Test
+    void rows_route_by_their_key_field() {
+        SnowpipeRestSharding sharding = new SnowpipeRestSharding(SHARDS, "CUSTOMER", WORK_DIR);
+        assertEquals("CUSTOMER", sharding.get_key_field());
+        assertEquals(5, sharding.shard_of(Map.of("CUSTOMER", "customer-42", "ID", 1)));
+        // Other values by their string
+        assertEquals(sharding.shard_of("42"), sharding.shard_of(Map.of("CUSTOMER", 42)));
+        assertEquals(-1, sharding.shard_of(Map.of("ID", 1)));
+        Map<String,Object> row = new HashMap<String,Object>();
+        row.put("CUSTOMER", null);
+        assertEquals(-1, sharding.shard_of(row));
+    }
+
+    @Test
+    void each_shard_is_claimed_once() {
+        SnowpipeRestSharding first = new SnowpipeRestSharding(SHARDS, null, WORK_DIR);
+        SnowpipeRestSharding second = new SnowpipeRestSharding(SHARDS, null, WORK_DIR);
+        SnowpipeRestSharding third = new SnowpipeRestSharding(SHARDS, null, WORK_DIR);
+        try {
+            assertArrayEquals(new int[] { 0, 1, 2 }, first.claim("auto", 3));
+            assertArrayEquals(new int[] { 3, 4, 5, 6, 7 }, second.claim("auto", 0));
+            assertThrows(RuntimeException.class, () -> third.claim("auto", 0));
+            assertThrows(RuntimeException.class, () -> third.claim("2-3", 0));
+            assertArrayEquals(new int[0], third.get_claimed());
+
+            first.release();
+            assertArrayEquals(new int[0], first.get_claimed());
+            assertArrayEquals(new int[] { 0, 2 }, third.claim("0,2", 0));
+            assertArrayEquals(new int[] { 1 }, first.claim("auto", 0));
+        }
+        finally {
+            first.release();
+            second.release();
+            third.release();
+        }
+    }
+
+    @Test
+    void invalid_claims_are_rejected() {
+        SnowpipeRestSharding sharding = new SnowpipeRestSharding(SHARDS, null, WORK_DIR);
+        assertThrows(RuntimeException.class, () -> sharding.claim("8", 0));
+        assertThrows(RuntimeException.class, () -> sharding.claim("3-1", 0));
+        assertThrows(RuntimeException.class, () -> sharding.claim("x", 0));
+        assertThrows(RuntimeException.class, () -> new SnowpipeRestSharding(0, null, WORK_DIR));
+    }
+}
@@ -0,0 +1,215 @@
+package com.example.SnowpipeRest;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.springframework.util.FileSystemUtils;
+
+// WAL files on their own: what is appended reads back, row by row, and a
+// torn or corrupt tail ends the rows instead of replaying garbage
+public class SnowpipeRestWALSegmentTest {
+    static final String WORK_DIR = "target/wal-segment-test";
+    static final int SEGMENT_BYTES = 4096;
+    static final List<String> ROWS = List.of("{\"ID\":1}", "{\"ID\":2,\"NAME\":\"two\"}", "{\"ID\":3,\"NAME\":\"three\"}");
+    static final byte[] KEY = key_record("{\"key\":\"k1\"}");
+
+    private File file;
+
+    @BeforeEach
+    void clean() {
+        FileSystemUtils.deleteRecursively(new File(WORK_DIR));
+        new File(WORK_DIR).mkdirs();
+        file = new File(WORK_DIR, "wal_0.log");
+    }
+
+    private static byte[] key_record(String json) {
+        byte[] b = json.getBytes(StandardCharsets.UTF_8);
+        byte[] record = new byte[b.length + 1];
+        record[0] = SnowpipeRestWALSegment.KEY_RECORD;
+        System.arraycopy(b, 0, record, 1, b.length);
+        return record;
+    }
+
+    private static String string(ByteBuffer b) {
+        return StandardCharsets.UTF_8.decode(b.duplicate()).toString();
+    }
+
+    // The rows of the file, and its key records into keys
+    private List<String> read(List<String> keys) throws IOException {
+        SnowpipeRestWALSegment segment = SnowpipeRestWALSegment.open(file);
+        segment.on_key_record(k -> keys.add(string(k)));
+        List<String> rows = new ArrayList<String>();
+        ByteBuffer row;
+        while (null != (row = segment.next()))
+            rows.add(string(row));
+        segment.close();
+        return rows;
+    }
+
+    private List<String> read() throws IOException {
+        return read(new ArrayList<String>());
+    }
+
+    private void append_rows() throws IOException {
+        SnowpipeRestWALSegment segment = SnowpipeRestWALSegment.create(file, SEGMENT_BYTES, SnowpipeRestWALCodec.NONE);
+        for (String row : ROWS) {
+            byte[] b = row.getBytes(StandardCharsets.UTF_8);
+            assertTrue(segment.append(b, b.length));
+        }
+        segment.force();
+    }
+
+    // The file offset of the n-th record of an uncompressed file of ROWS
+    private static long record_offset(int n) {
+        long offset = SnowpipeRestWALSegment.HEADER_BYTES;
+        for (int i = 0; i < n; i++)
+            offset += SnowpipeRestWALSegment.RECORD_HEADER_BYTES + ROWS.get(i).getBytes(StandardCharsets.UTF_8).length;
+        return offset;
+    }
+
+    @Test
+    void rows_and_key_records_read_back() throws IOException {
+        SnowpipeRestWALSegment segment = SnowpipeRestWALSegment.create(file, SEGMENT_BYTES, SnowpipeRestWALCodec.NONE);
+        assertEquals(SEGMENT_BYTES, file.length());
+        for (String row : ROWS) {
+            byte[] b = row.getBytes(StandardCharsets.UTF_8);
+            assertTrue(segment.append(b, b.length));
+            assertTrue(segment.append(KEY, KEY.length));
+        }
+        segment.force();
+
+        List<String> keys = new ArrayList<String>();
+        assertEquals(ROWS, read(keys));
+        assertEquals(ROWS.size(), keys.size());
+        assertEquals(string(ByteBuffer.wrap(KEY)), keys.get(0));
+        assertTrue(SnowpipeRestWALSegment.is_segment(file));
+    }
+
+    @Test
+    void a_record_that_does_not_fit_is_not_written() throws IOException {
+        SnowpipeRestWALSegment segment = SnowpipeRestWALSegment.create(file, SnowpipeRestWALSegment.size_for(8), SnowpipeRestWALCodec.NONE);
+        byte[] big = new byte[SEGMENT_BYTES];
+        assertFalse(segment.append(big, big.length));
+        byte[] row = ROWS.get(0).getBytes(StandardCharsets.UTF_8);
+        assertTrue(segment.append(row, row.length));
+        assertFalse(segment.append(row, row.length));
+        segment.force();
+        assertEquals(ROWS.subList(0, 1), read());
+    }
+
+    @Test
+    void a_checksum_mismatch_ends_the_rows() throws IOException {
+        append_rows();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            long pos = record_offset(2) + SnowpipeRestWALSegment.RECORD_HEADER_BYTES + 1;
+            raf.seek(pos);
+            int b = raf.read();
+            raf.seek(pos);
+            raf.write(b ^ 0x20);
+        }
+        assertEquals(ROWS.subList(0, 2), read());
+    }
+
+    @Test
+    void a_record_past_the_end_of_the_file_ends_the_rows() throws IOException {
+        append_rows();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(record_offset(1));
+            raf.writeInt(2 * SEGMENT_BYTES);
+        }
+        assertEquals(ROWS.subList(0, 1), read());
+    }
+
+    @Test
+    void skip_counts_rows_not_key_records() throws IOException {
+        SnowpipeRestWALSegment segment = SnowpipeRestWALSegment.create(file, SEGMENT_BYTES, SnowpipeRestWALCodec.NONE);
+        for (String row : ROWS) {
+            assertTrue(segment.append(KEY, KEY.length));
+            byte[] b = row.getBytes(StandardCharsets.UTF_8);
+            assertTrue(segment.append(b, b.length));
+        }
+        segment.force();
+
+        SnowpipeRestWALSegment replay = SnowpipeRestWALSegment.open(file);
+        assertEquals(2, replay.skip(2));
+        assertEquals(ROWS.get(2), string(replay.next()));
+        assertEquals(0, replay.skip(1));
+    }
+
+    // One block of [int length][row] per row of rows, compressed and
+    // appended; returns the compressed length
+    private static int append_block(SnowpipeRestWALSegment segment, SnowpipeRestWALCodec codec, List<byte[]> rows) throws IOException {
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(raw);
+        for (byte[] row : rows) {
+            out.writeInt(row.length);
+            out.write(row);
+        }
+        byte[] block = raw.toByteArray();
+        byte[] compressed = new byte[codec.max_compressed_bytes(block.length)];
+        int length = codec.compress(block, block.length, compressed);
+        assertTrue(segment.append_block(block.length, compressed, length));
+        return length;
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = { SnowpipeRestWALCodec.DEFLATE, SnowpipeRestWALCodec.ZSTD })
+    void compressed_blocks_read_back(int codec_id) throws IOException {
+        SnowpipeRestWALCodec codec = new SnowpipeRestWALCodec(codec_id);
+        SnowpipeRestWALSegment segment = SnowpipeRestWALSegment.create(file, SEGMENT_BYTES, codec_id);
+        List<byte[]> first = new ArrayList<byte[]>();
+        for (String row : ROWS)
+            first.add(row.getBytes(StandardCharsets.UTF_8));
+        first.add(KEY);
+        append_block(segment, codec, first);
+        // A key record is a block of its own
+        append_block(segment, codec, List.of(KEY));
+        append_block(segment, codec, List.of(ROWS.get(0).getBytes(StandardCharsets.UTF_8)));
+        segment.force();
+        codec.close();
+
+        List<String> keys = new ArrayList<String>();
+        List<String> expected = new ArrayList<String>(ROWS);
+        expected.add(ROWS.get(0));
+        assertEquals(expected, read(keys));
+        assertEquals(2, keys.size());
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = { SnowpipeRestWALCodec.DEFLATE, SnowpipeRestWALCodec.ZSTD })
+    void a_corrupt_block_ends_the_rows(int codec_id) throws IOException {
+        SnowpipeRestWALCodec codec = new SnowpipeRestWALCodec(codec_id);
+        SnowpipeRestWALSegment segment = SnowpipeRestWALSegment.create(file, SEGMENT_BYTES, codec_id);
+        int length = append_block(segment, codec, List.of(ROWS.get(0).getBytes(StandardCharsets.UTF_8)));
+        append_block(segment, codec, List.of(ROWS.get(1).getBytes(StandardCharsets.UTF_8)));
+        segment.force();
+        codec.close();
+
+        // Flip a byte of the second block's compressed data
+        long second = SnowpipeRestWALSegment.BLOCKS_HEADER_BYTES + SnowpipeRestWALSegment.RECORD_HEADER_BYTES
+            + SnowpipeRestWALSegment.BLOCK_HEADER_BYTES + length;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            long pos = second + SnowpipeRestWALSegment.RECORD_HEADER_BYTES + SnowpipeRestWALSegment.BLOCK_HEADER_BYTES;
+            raf.seek(pos);
+            int b = raf.read();
+            raf.seek(pos);
+            raf.write(b ^ 0x01);
+        }
+        assertEquals(ROWS.subList(0, 1), read());
+    }
+}